@@ -0,0 +1,76 @@
+package com.yegnachat.server.bench;
+
+import com.google.gson.Gson;
+import com.yegnachat.server.net.OutboundFrame;
+import com.yegnachat.server.net.OutboundQueue;
+import com.yegnachat.server.net.OverflowPolicy;
+import com.yegnachat.server.protocol.JsonMessage;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of fanning one group message out to every member's outbound queue.
+ * perRecipientEncoding is what send(String) does for each member, sharedFrame is what
+ * ClientHandler.deliver() does.
+ *
+ * Run with: java -jar target/benchmarks.jar GroupFanOutBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GroupFanOutBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int members;
+
+    private OutboundQueue[] queues;
+    private String outgoing;
+
+    @Setup
+    public void setup() {
+        queues = new OutboundQueue[members];
+        for (int i = 0; i < members; i++) {
+            queues[i] = new OutboundQueue(16, OverflowPolicy.DROP);
+        }
+
+        Map<String, Object> payload = Map.of(
+                "chat_type", "group",
+                "sender_id", 42,
+                "sender_username", "selam",
+                "avatar_url", "/uploads/avatar/avatar_42_1700000000000.png",
+                "group_id", 7,
+                "content", "ሰላም! Meeting moved to 5pm, bring the slides for the demo."
+        );
+        outgoing = new Gson().toJson(new JsonMessage("send_message", payload));
+    }
+
+    @Benchmark
+    public void perRecipientEncoding(Blackhole bh) {
+        for (OutboundQueue queue : queues) {
+            queue.offer(OutboundFrame.json(outgoing));
+        }
+        drain(bh);
+    }
+
+    @Benchmark
+    public void sharedFrame(Blackhole bh) {
+        OutboundFrame frame = OutboundFrame.json(outgoing);
+        for (OutboundQueue queue : queues) {
+            queue.offer(frame);
+        }
+        drain(bh);
+    }
+
+    // Stands in for the writer threads so the queues never fill up
+    private void drain(Blackhole bh) {
+        for (OutboundQueue queue : queues) {
+            bh.consume(queue.poll());
+        }
+    }
+}
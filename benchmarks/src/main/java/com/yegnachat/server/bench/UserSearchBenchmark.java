@@ -0,0 +1,84 @@
+package com.yegnachat.server.bench;
+
+import com.yegnachat.server.user.UsernameIndex;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One search_users lookup. scan is what WHERE LOWER(username) LIKE '%q%' LIMIT 20 makes MySQL do,
+ * minus the I/O: lowercase every username until 20 contain the query. index is UsernameIndex, which
+ * also ranks its matches. A rare query makes the scan read every row.
+ *
+ * Run with: java -jar target/benchmarks.jar UserSearchBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class UserSearchBenchmark {
+
+    private static final String[] SYLLABLES = {
+            "a", "be", "bi", "da", "de", "ge", "ha", "ka", "le", "li", "ma", "me", "mi", "na", "ne",
+            "ra", "re", "sa", "se", "ta", "te", "to", "wa", "ye", "yo", "zu", "lam", "kal", "tes", "hay"
+    };
+
+    @Param({"100000", "1000000"})
+    public int users;
+
+    // Common prefix, common substring, a name, and one nobody has
+    @Param({"ma", "ela", "selam", "qqx"})
+    public String query;
+
+    private String[] usernames;
+    private UsernameIndex index;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        Set<String> seen = new HashSet<>();
+        usernames = new String[users];
+        int[] ids = new int[users];
+        for (int i = 0; i < users; i++) {
+            String name;
+            do {
+                StringBuilder sb = new StringBuilder();
+                int syllables = 2 + random.nextInt(4);
+                for (int s = 0; s < syllables; s++) {
+                    sb.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+                }
+                if (random.nextInt(3) == 0) sb.append(random.nextInt(100));
+                name = random.nextInt(4) == 0 ? Character.toUpperCase(sb.charAt(0)) + sb.substring(1) : sb.toString();
+            } while (!seen.add(name.toLowerCase(Locale.ROOT)));
+            usernames[i] = name;
+            ids[i] = i + 1;
+        }
+
+        index = new UsernameIndex();
+        index.addAll(ids, usernames);
+    }
+
+    @Benchmark
+    public int[] index() {
+        return index.search(query, 20, 0);
+    }
+
+    @Benchmark
+    public void scan(Blackhole bh) {
+        String q = query.toLowerCase(Locale.ROOT);
+        int found = 0;
+        for (int i = 0; i < usernames.length && found < 20; i++) {
+            if (usernames[i].toLowerCase(Locale.ROOT).contains(q)) {
+                bh.consume(i + 1);
+                found++;
+            }
+        }
+    }
+}
@@ -3,9 +3,21 @@ package com.yegnachat.server;
 import com.yegnachat.server.auth.AuthService;
 import com.yegnachat.server.auth.SessionManager;
 import com.yegnachat.server.chat.ChatService;
+import com.yegnachat.server.chat.ConversationBackfill;
+import com.yegnachat.server.chat.MessageWriter;
+import com.yegnachat.server.chat.RecentMessageCache;
+import com.yegnachat.server.feed.FeedEvents;
 import com.yegnachat.server.feed.FeedService;
+import com.yegnachat.server.feed.HomeTimelines;
+import com.yegnachat.server.feed.LikeBuffer;
+import com.yegnachat.server.feed.PostCounters;
+import com.yegnachat.server.feed.TrendingPosts;
 import com.yegnachat.server.image.ImageUploadService;
+import com.yegnachat.server.net.NioServer;
+import com.yegnachat.server.net.SocketClientHandler;
+import com.yegnachat.server.net.TransportMode;
 import com.yegnachat.server.user.UserService;
+import com.yegnachat.server.util.BufferPool;
 
 import java.io.IOException;
 import java.net.ServerSocket;
@@ -14,35 +26,84 @@ import java.net.Socket;
 public class ChatServer {
 
     private final ServerSocket serverSocket;
+    private final NioServer nioServer;
     private final DatabaseService databaseService;
+    private final MessageWriter messageWriter;
+    private final PostCounters postCounters;
+    private final LikeBuffer likeBuffer;
+    private final FeedEvents feedEvents;
     private final MessageRouter router;
+    private final ServerConfig config;
+    private final BufferPool readBuffers;
 
-    public ChatServer(int port, String dbUrl, String dbUser, String dbPassword) throws IOException {
+    public ChatServer(int port, String dbUrl, String dbUser, String dbPassword, ServerConfig config) throws IOException {
 
-        databaseService = new DatabaseService(dbUrl, dbUser, dbPassword);
+        this.config = config;
+        this.readBuffers = new BufferPool(config.readBufferSize(), false, config.maxPooledBuffers());
+
+        databaseService = new DatabaseService(dbUrl, dbUser, dbPassword, config.streamPoolSize());
 
         AuthService authService = new AuthService(databaseService);
-        ChatService chatService = new ChatService(databaseService);
-        UserService userService = new UserService(databaseService);
-        FeedService feedService = new FeedService(databaseService);
+        UserService userService = new UserService(databaseService, config.userProfileCacheSize(), config.userProfileCacheTtlSeconds());
+        userService.loadUsernameIndex();
+        RecentMessageCache recentMessages = new RecentMessageCache(
+                config.historyCacheMessages(), config.historyCacheMegabytes() * 1024L * 1024L);
+        messageWriter = new MessageWriter(databaseService, recentMessages,
+                config.messageBatchSize(), config.messageBatchDelayMicros());
+        ChatService chatService = new ChatService(databaseService, messageWriter, recentMessages, userService,
+                config.sendDedupeEntries(), config.sendDedupeWindowSeconds());
+        postCounters = new PostCounters(databaseService, config.postCounterFlushMillis(), config.postCounterReconcileMinutes());
+        HomeTimelines homeTimelines = new HomeTimelines(databaseService,
+                config.homeTimelineUsers(), config.homeTimelineLength(), config.homeFanOutLimit());
+        homeTimelines.loadHighFollowing();
+        likeBuffer = new LikeBuffer(databaseService, postCounters, config.likeFlushMillis());
+        feedEvents = new FeedEvents(databaseService, postCounters, likeBuffer, config.feedPushMillis());
+        TrendingPosts trendingPosts = new TrendingPosts(databaseService,
+                config.trendingPosts(), config.trendingHalfLifeMinutes());
+        trendingPosts.rebuild();
+        FeedService feedService = new FeedService(databaseService, postCounters, likeBuffer, homeTimelines,
+                feedEvents, trendingPosts, config.commentCacheSize(), config.commentCacheTtlSeconds());
+        ConversationBackfill.runIfNeeded(databaseService);
         SessionManager.init(databaseService);
         ImageUploadService.setDb(databaseService);
+        ImageUploadService.setUserService(userService);
+
+        this.router = new MessageRouter(authService, chatService, userService,feedService,
+                config.maxBatchRequests(), config.maxInFlightRequests());
 
-        this.router = new MessageRouter(authService, chatService, userService,feedService);
-        this.serverSocket = new ServerSocket(port);
+        TransportMode transport = config.transportMode();
+        if (transport == TransportMode.NIO) {
+            this.nioServer = new NioServer(port, router, config);
+            this.serverSocket = null;
+        } else {
+            this.nioServer = null;
+            this.serverSocket = new ServerSocket(port);
+        }
 
-        System.out.println("Server started on port " + port);
+        System.out.println("Server started on port " + port + " (" + transport + " transport)");
     }
 
     public void startServer() {
         System.out.println("Waiting for clients...");
 
+        if (nioServer != null) {
+            nioServer.run();
+            return;
+        }
+
         while (!serverSocket.isClosed()) {
             try {
                 Socket socket = serverSocket.accept();
                 System.out.println("Client connected: " + socket.getInetAddress());
 
-                ClientHandler clientHandler = new ClientHandler(socket, router);
+                SocketClientHandler clientHandler = new SocketClientHandler(
+                        socket,
+                        router,
+                        config.outboundQueueCapacity(),
+                        config.outboundOverflowPolicy(),
+                        config.maxInFlightRequests(),
+                        readBuffers
+                );
 
                 Thread thread = Thread.ofVirtual().unstarted(clientHandler);
                 thread.start();
@@ -55,7 +116,15 @@ public class ChatServer {
 
     public void stopServer() {
         try {
-            serverSocket.close();
+            if (nioServer != null) {
+                nioServer.stop();
+            } else {
+                serverSocket.close();
+            }
+            messageWriter.close();
+            feedEvents.close();
+            likeBuffer.close();
+            postCounters.close();
             databaseService.close();
             System.out.println("Server stopped.");
         } catch (IOException e) {
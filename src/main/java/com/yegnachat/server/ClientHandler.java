@@ -1,38 +1,77 @@
 package com.yegnachat.server;
 
 import com.yegnachat.server.auth.SessionInfo;
-import com.yegnachat.server.util.LimitedInputStream;
+import com.yegnachat.server.command.CommandRequest;
+import com.yegnachat.server.command.Ordering;
+import com.yegnachat.server.net.OutboundFrame;
+import com.yegnachat.server.net.OutboundQueue;
+import com.yegnachat.server.net.OverflowPolicy;
+import com.yegnachat.server.protocol.JsonMessage;
+import com.yegnachat.server.util.StreamSlot;
 
 import java.io.*;
-import java.net.Socket;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class ClientHandler implements Runnable {
+/**
+ * One connected client: session state and the outbound queue. How bytes actually move is up to
+ * the transport subclass (blocking socket or NIO selector).
+ */
+public abstract class ClientHandler {
 
-    private final Socket socket;
-    private final BufferedReader reader;
-    private final BufferedWriter writer;
-    private final InputStream rawIn;
-    private final MessageRouter router;
+    // Replies larger than this are streamed in chunks of this size
+    private static final int RESPONSE_CHUNK_SIZE = 16 * 1024;
+
+    // Requests without a request_id share one sequence, so older clients get replies in order
+    private static final String UNTAGGED = "untagged";
+
+    private static final ExecutorService REQUEST_THREADS =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("request-", 0).factory());
+
+    protected final MessageRouter router;
+
+    // Frames are written by the transport's writer so a slow receiver never blocks the sender
+    protected final OutboundQueue outbound;
+    private volatile boolean closed;
+    private volatile boolean closeAfterReply;
+    private final AtomicBoolean transportClosed = new AtomicBoolean();
 
 
     private SessionInfo session;
 
     private static final Map<Integer, ClientHandler> ONLINE_USERS = new ConcurrentHashMap<>();
 
-    public ClientHandler(Socket socket, MessageRouter router) throws IOException {
-        this.socket = socket;
+    // Requests of this connection that are running or waiting for their turn
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final Map<String, CompletableFuture<Void>> sequences = new ConcurrentHashMap<>();
+
+    // Only one reply at a time may hold a query open while it is written, see StreamSlot
+    private final StreamSlot streamSlot = new StreamSlot();
+
+    // Pushes that have to reach the client after the reply of the request being handled
+    private final Queue<JsonMessage> afterReply = new ConcurrentLinkedQueue<>();
+
+    protected ClientHandler(MessageRouter router, int outboundCapacity, OverflowPolicy overflowPolicy,
+                            int maxInFlight) {
         this.router = router;
-        this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-        this.rawIn = socket.getInputStream();
+        this.outbound = new OutboundQueue(outboundCapacity, overflowPolicy);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.inFlight = new Semaphore(this.maxInFlight);
     }
 
     public synchronized void setSession(SessionInfo newSession) {
         // Remove old session mapping if exists
         if (this.session != null) {
-            ONLINE_USERS.remove(this.session.getUserId());
+            ONLINE_USERS.remove(this.session.getUserId(), this);
         }
 
         this.session = newSession;
@@ -45,7 +84,7 @@ public class ClientHandler implements Runnable {
     // Add a helper to clear session (for logout)
     public synchronized void clearSession() {
         if (this.session != null) {
-            ONLINE_USERS.remove(this.session.getUserId());
+            ONLINE_USERS.remove(this.session.getUserId(), this);
             this.session = null;
         }
     }
@@ -54,56 +93,272 @@ public class ClientHandler implements Runnable {
         return session;
     }
 
-    @Override
-    public void run() {
+    /**
+     * Routes one inbound JSON frame. Called by the transport for one frame at a time, in arrival
+     * order. Requests run on their own virtual threads, at most maxInFlight at once, and the reply
+     * carries the request_id so the client can match it. Exclusive requests run right here once
+     * everything else has finished, so nothing after them is read until they are done.
+     */
+    protected void handleFrame(String json) {
+        // Nothing more is handled once the connection is closing
+        if (closed) return;
+
+        CommandRequest request;
         try {
-            while (true) {
-                String json = reader.readLine();
-                if (json == null) break;
+            request = router.decode(json);
+        } catch (IOException | RuntimeException e) {
+            send(router.malformed(e));
+            return;
+        }
 
-                String response = router.route(json, this);
-                if (response != null) {
-                    send(response);
-                }
+        String key = request.orderingKey();
+        if (key == Ordering.EXCLUSIVE || maxInFlight == 1) {
+            inFlight.acquireUninterruptibly(maxInFlight);
+            try {
+                reply(request);
+            } finally {
+                inFlight.release(maxInFlight);
             }
+            return;
+        }
+        if (request.requestId() == null) key = UNTAGGED;
+
+        // Blocks the reader once the cap is reached, which pushes back on the client
+        inFlight.acquireUninterruptibly();
+        Runnable task = () -> {
+            try {
+                reply(request);
+            } finally {
+                inFlight.release();
+            }
+        };
 
-        } catch (IOException ignored) {
-        } finally {
+        if (key == null) {
+            REQUEST_THREADS.execute(task);
+        } else {
+            runInOrder(key, task);
+        }
+    }
+
+    // Runs the task after every earlier task with the same key. Only called from the reading side
+    private void runInOrder(String key, Runnable task) {
+        CompletableFuture<Void> previous = sequences.getOrDefault(key, CompletableFuture.completedFuture(null));
+        CompletableFuture<Void> next = previous.handleAsync((r, e) -> {
+            task.run();
+            return null;
+        }, REQUEST_THREADS);
+        sequences.put(key, next);
+        next.whenComplete((r, e) -> sequences.remove(key, next));
+    }
+
+    private void reply(CommandRequest request) {
+        try {
+            JsonMessage response;
+            streamSlot.install();
+            try {
+                response = router.execute(request, this);
+            } finally {
+                StreamSlot.uninstall();
+            }
+            if (response != null) {
+                send(response);
+            }
+            for (JsonMessage push; (push = afterReply.poll()) != null; ) {
+                send(push);
+            }
+            if (closeAfterReply) closeWhenFlushed();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
             close();
         }
     }
 
-    protected void send(String json) {
+    /**
+     * Serializes a reply straight into outbound frames. A reply that fits in one chunk is queued
+     * as a single frame; a bigger one is queued chunk by chunk while it is still being written, so
+     * it never sits in memory as a whole. May block while a streamed reply waits for the client.
+     */
+    protected boolean send(JsonMessage message) {
+        ResponseOutputStream out = new ResponseOutputStream();
         try {
-            writer.write(json);
-            writer.newLine();
-            writer.flush();
+            router.write(message, out);
+            return out.finish();
         } catch (IOException e) {
+            if (out.dropped) return false;
+            // Part of the reply may already be on the wire, the connection can't recover from that
+            if (!isClosed()) {
+                System.out.println("Failed streaming reply to " + remoteAddress() + ": " + e.getMessage());
+                close();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Queues a push to go out right behind the reply of the request currently being handled, e.g.
+     * messages that arrived while the user was offline, after login_response. Only ordered reliably
+     * when called from an exclusive command, other requests may send it ahead of their own reply.
+     */
+    public void sendAfterReply(JsonMessage push) {
+        afterReply.add(push);
+    }
+
+    protected boolean send(String json) {
+        return send(OutboundFrame.json(json));
+    }
+
+    // Never blocks: the frame is handed to the transport's writer
+    protected boolean send(OutboundFrame frame) {
+        return send(null, frame);
+    }
+
+    // A frame with a key replaces a pending one with the same key under OverflowPolicy.COALESCE
+    protected boolean send(String key, OutboundFrame frame) {
+        return accepted(outbound.offer(key, frame));
+    }
+
+    private boolean accepted(OutboundQueue.Result result) {
+        if (result == OutboundQueue.Result.OVERFLOW) {
+            System.out.println("Disconnecting slow client: " + remoteAddress());
             close();
+            return false;
         }
+        if (result == OutboundQueue.Result.QUEUED || result == OutboundQueue.Result.COALESCED) {
+            onFrameQueued();
+            return true;
+        }
+        return false;
+    }
+
+    public static boolean isOnline(int userId) {
+        return ONLINE_USERS.containsKey(userId);
     }
 
     // For online user only
     public static boolean sendToUser(int userId, String json) {
         ClientHandler client = ONLINE_USERS.get(userId);
         if (client != null) {
-            client.send(json);
-            return true;
+            return client.send(json);
         }
         return false;
     }
 
-    public InputStream readBinary(long size) throws IOException {
-        return new LimitedInputStream(rawIn, size);
+    // The same pre-encoded frame is shared by every online recipient. Returns the ids it couldn't be handed to
+    public static int[] deliver(int[] userIds, OutboundFrame frame) {
+        return deliver(userIds, null, frame);
     }
 
-    public void close() {
-        try {
-            if (session != null) {
-                ONLINE_USERS.remove(session.getUserId());
+    // For pushes a newer one with the same key fully replaces, see OutboundQueue.offer
+    public static int[] deliver(int[] userIds, String key, OutboundFrame frame) {
+        int[] missed = new int[userIds.length];
+        int count = 0;
+        for (int userId : userIds) {
+            ClientHandler client = ONLINE_USERS.get(userId);
+            if (client == null || !client.send(key, frame)) {
+                missed[count++] = userId;
+            }
+        }
+        return Arrays.copyOf(missed, count);
+    }
+
+    private class ResponseOutputStream extends OutputStream {
+
+        private final byte[] buf = new byte[RESPONSE_CHUNK_SIZE];
+        private int count;
+        private OutboundQueue.Stream stream;
+        private boolean dropped;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buf.length) emitChunk();
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buf.length) emitChunk();
+                int n = Math.min(len, buf.length - count);
+                System.arraycopy(b, off, buf, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        // The buffer is full and more is coming, so this reply becomes a stream
+        private void emitChunk() throws IOException {
+            if (stream == null) {
+                OutboundQueue.Stream s = outbound.newStream();
+                if (!accepted(outbound.offer(s))) {
+                    dropped = true;
+                    throw new EOFException("Reply dropped");
+                }
+                stream = s;
+            }
+            stream.write(OutboundFrame.chunk(Arrays.copyOf(buf, count)));
+            count = 0;
+            onFrameQueued();
+        }
+
+        boolean finish() throws IOException {
+            OutboundFrame last = OutboundFrame.json(Arrays.copyOf(buf, count));
+            if (stream == null) {
+                return send(last);
             }
-            socket.close();
-        } catch (IOException ignored) {
+            stream.finish(last);
+            onFrameQueued();
+            return true;
+        }
+    }
+
+    /**
+     * Binary payload that follows the frame currently being routed (create_post images).
+     * Only valid while that frame is being handled.
+     */
+    public abstract InputStream readBinary(long size) throws IOException;
+
+    protected abstract String remoteAddress();
+
+    // Hook for transports that need a nudge when new output is waiting
+    protected void onFrameQueued() {
+    }
+
+    protected abstract void closeTransport();
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the connection once the reply of the request being handled, and everything queued
+     * before it, has been written, e.g. logout_response.
+     */
+    public void closeAfterReply() {
+        closeAfterReply = true;
+    }
+
+    // Stops taking requests, the transport closes itself once the queue has drained
+    private void closeWhenFlushed() {
+        if (closed) return;
+        closed = true;
+        forget();
+        outbound.drain();
+        onFrameQueued();
+    }
+
+    // Drops whatever is still queued. Safe to call again after closeWhenFlushed to finish closing
+    public void close() {
+        closed = true;
+        forget();
+        outbound.close();
+        if (transportClosed.compareAndSet(false, true)) closeTransport();
+    }
+
+    private void forget() {
+        SessionInfo current = session;
+        if (current != null) {
+            ONLINE_USERS.remove(current.getUserId(), this);
         }
     }
 }
@@ -7,30 +7,54 @@ import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.util.Scanner;
+import java.util.Set;
+
+public final class DatabaseService {
+    // MySQL errors for a table, column or index that already exists
+    private static final Set<Integer> ALREADY_APPLIED = Set.of(1050, 1060, 1061, 1091);
+
+    private static final int DEFAULT_STREAM_POOL_SIZE = 8;
 
-public class DatabaseService {
     private final HikariDataSource ds;
+    // Streamed replies may wait on a slow client while holding a connection, so they can't take ds
+    private final HikariDataSource streams;
 
     public DatabaseService(String jdbcUrl, String username, String password) {
+        this(jdbcUrl, username, password, DEFAULT_STREAM_POOL_SIZE);
+    }
+
+    public DatabaseService(String jdbcUrl, String username, String password, int streamPoolSize) {
+        this.ds = new HikariDataSource(poolConfig(jdbcUrl, username, password, "db", 10));
+        this.streams = new HikariDataSource(poolConfig(jdbcUrl, username, password, "db-streams", streamPoolSize));
+
+
+        runMigrationsIfNeeded();
+    }
+
+    private static HikariConfig poolConfig(String jdbcUrl, String username, String password, String name, int size) {
         HikariConfig cfg = new HikariConfig();
+        cfg.setPoolName(name);
         cfg.setJdbcUrl(jdbcUrl);
         cfg.setUsername(username);
         cfg.setPassword(password);
-        cfg.setMaximumPoolSize(10);
+        cfg.setMaximumPoolSize(Math.max(1, size));
         cfg.addDataSourceProperty("cachePrepStmts", "true");
         cfg.addDataSourceProperty("prepStmtCacheSize", "250");
         cfg.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
-        this.ds = new HikariDataSource(cfg);
-
-
-        runMigrationsIfNeeded();
+        return cfg;
     }
 
     public Connection getConnection() throws SQLException {
         return ds.getConnection();
     }
 
+    // For queries whose rows are written to a client as they are read, see JsonRowStream
+    public Connection getStreamingConnection() throws SQLException {
+        return streams.getConnection();
+    }
+
     public void close() {
+        if (streams != null && !streams.isClosed()) streams.close();
         if (ds != null && !ds.isClosed()) ds.close();
     }
 
@@ -45,7 +69,14 @@ public class DatabaseService {
                 for (String stmt : sql.split(";")) {
                     String trimmed = stmt.trim();
                     if (trimmed.isEmpty()) continue;
-                    st.execute(trimmed);
+                    try {
+                        st.execute(trimmed);
+                    } catch (SQLException e) {
+                        // Indexes and columns added by later changes already exist after the first run,
+                        // and ones they drop are already gone
+                        if (ALREADY_APPLIED.contains(e.getErrorCode())) continue;
+                        System.err.println("Migration statement failed: " + e.getMessage());
+                    }
                 }
             }
             System.out.println("Schema migration finished (schema.sql)");
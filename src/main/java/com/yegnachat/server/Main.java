@@ -27,7 +27,8 @@ public class Main {
             System.out.print("Enter HTTP image server port: ");
             int httpPort = scanner.nextInt();
 
-            ChatServer chatServer = new ChatServer(socketPort, DB_URL, DB_USER, DB_PASS);
+            ServerConfig config = new ServerConfig(dotenv);
+            ChatServer chatServer = new ChatServer(socketPort, DB_URL, DB_USER, DB_PASS, config);
             HttpImageServer httpServer = new HttpImageServer(httpPort, imageRoot);
 
             // Start HTTP server
@@ -0,0 +1,167 @@
+package com.yegnachat.server;
+
+import com.yegnachat.server.net.OverflowPolicy;
+import com.yegnachat.server.net.TransportMode;
+import io.github.cdimascio.dotenv.Dotenv;
+
+/**
+ * Optional tuning knobs read from .env (or the process environment). Every value has a default,
+ * so an existing .env keeps working unchanged.
+ */
+public class ServerConfig {
+
+    private final Dotenv dotenv;
+
+    public ServerConfig(Dotenv dotenv) {
+        this.dotenv = dotenv;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = dotenv.get(key);
+        if (value == null || value.isBlank()) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + key + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = dotenv.get(key);
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    // Max frames waiting to be written to one client
+    public int outboundQueueCapacity() {
+        return getInt("OUTBOUND_QUEUE_CAPACITY", 1024);
+    }
+
+    public OverflowPolicy outboundOverflowPolicy() {
+        return OverflowPolicy.parse(dotenv.get("OUTBOUND_OVERFLOW_POLICY"), OverflowPolicy.DISCONNECT);
+    }
+
+    // Size of each pooled read buffer; frames larger than this are still accepted
+    public int readBufferSize() {
+        return getInt("READ_BUFFER_SIZE", 8 * 1024);
+    }
+
+    public int writeBufferSize() {
+        return getInt("WRITE_BUFFER_SIZE", 16 * 1024);
+    }
+
+    // Free buffers kept per pool, the rest are left to the GC
+    public int maxPooledBuffers() {
+        return getInt("MAX_POOLED_BUFFERS", 1024);
+    }
+
+    // Requests from one connection that may run at once, 1 handles them strictly one by one
+    public int maxInFlightRequests() {
+        return Math.max(1, getInt("MAX_IN_FLIGHT_REQUESTS", 8));
+    }
+
+    // Database connections for streamed replies, apart from the pool everything else uses
+    public int streamPoolSize() {
+        return Math.max(1, getInt("STREAM_POOL_SIZE", 8));
+    }
+
+    // Requests one batch frame may carry
+    public int maxBatchRequests() {
+        return Math.max(1, getInt("MAX_BATCH_REQUESTS", 20));
+    }
+
+    // Chat messages written per INSERT, and how long the first one may wait for others to join it
+    public int messageBatchSize() {
+        return Math.max(1, getInt("MESSAGE_BATCH_SIZE", 256));
+    }
+
+    public int messageBatchDelayMicros() {
+        return Math.max(0, getInt("MESSAGE_BATCH_DELAY_MICROS", 500));
+    }
+
+    // Public user profiles kept in memory, and for how long before they are read again
+    public int userProfileCacheSize() {
+        return getInt("USER_PROFILE_CACHE_SIZE", 10_000);
+    }
+
+    public int userProfileCacheTtlSeconds() {
+        return Math.max(0, getInt("USER_PROFILE_CACHE_TTL_SECONDS", 300));
+    }
+
+    // Newest messages kept in memory per recently active conversation, and the memory they may use in total
+    public int historyCacheMessages() {
+        return getInt("HISTORY_CACHE_MESSAGES", 100);
+    }
+
+    public int historyCacheMegabytes() {
+        return Math.max(0, getInt("HISTORY_CACHE_MB", 32));
+    }
+
+    // client_msg_id values remembered for spotting retried sends, and for how long
+    public int sendDedupeEntries() {
+        return getInt("SEND_DEDUPE_ENTRIES", 100000);
+    }
+
+    public int sendDedupeWindowSeconds() {
+        return getInt("SEND_DEDUPE_WINDOW_SECONDS", 600);
+    }
+
+    // How often like/comment counts are written to posts, and how often they are recounted from scratch
+    public int postCounterFlushMillis() {
+        return getInt("POST_COUNTER_FLUSH_MS", 1000);
+    }
+
+    public int postCounterReconcileMinutes() {
+        return getInt("POST_COUNTER_RECONCILE_MINUTES", 60);
+    }
+
+    // How often buffered likes and unlikes are written to post_likes
+    public int likeFlushMillis() {
+        return getInt("LIKE_FLUSH_MS", 250);
+    }
+
+    // Feed activity is collected and pushed to online users this often
+    public int feedPushMillis() {
+        return getInt("FEED_PUSH_MS", 500);
+    }
+
+    // Posts whose first page of comments is kept in memory, and for how long at most
+    public int commentCacheSize() {
+        return getInt("COMMENT_CACHE_SIZE", 1000);
+    }
+
+    public int commentCacheTtlSeconds() {
+        return Math.max(0, getInt("COMMENT_CACHE_TTL_SECONDS", 300));
+    }
+
+    // Posts ranked for trending, and how fast their score fades
+    public int trendingPosts() {
+        return getInt("TRENDING_POSTS", 10_000);
+    }
+
+    public int trendingHalfLifeMinutes() {
+        return getInt("TRENDING_HALF_LIFE_MINUTES", 360);
+    }
+
+    // Home timelines kept in memory, post ids per timeline, and followers above which posts aren't fanned out
+    public int homeTimelineUsers() {
+        return getInt("HOME_TIMELINE_USERS", 10_000);
+    }
+
+    public int homeTimelineLength() {
+        return getInt("HOME_TIMELINE_LENGTH", 500);
+    }
+
+    public int homeFanOutLimit() {
+        return Math.max(0, getInt("HOME_FANOUT_LIMIT", 5000));
+    }
+
+    public TransportMode transportMode() {
+        return TransportMode.parse(dotenv.get("SERVER_TRANSPORT"), TransportMode.BLOCKING);
+    }
+
+    public int selectorThreads() {
+        int defaultThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        return Math.max(1, getInt("NIO_SELECTOR_THREADS", defaultThreads));
+    }
+}
@@ -1,144 +1,466 @@
 package com.yegnachat.server.chat;
 
+import com.google.gson.stream.JsonWriter;
 import com.yegnachat.server.DatabaseService;
-import com.yegnachat.server.user.User;
+import com.yegnachat.server.protocol.StreamingPayload;
+import com.yegnachat.server.user.UserProfile;
 import com.yegnachat.server.user.UserService;
+import com.yegnachat.server.util.ExpiringLruCache;
+import com.yegnachat.server.util.JsonRowStream;
+import com.yegnachat.server.util.Metrics;
 
+import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public class ChatService {
 
+    // Message ids per DELETE when trimming acknowledged deliveries
+    private static final int ACK_BATCH = 500;
+
+    private record SendKey(int senderId, boolean group, String clientMsgId) {}
+
     private final DatabaseService db;
+    private final MessageWriter messageWriter;
+    private final RecentMessageCache recentMessages;
+    private final UserService userService;
+    private final GroupMembershipIndex memberships;
+
+    // Ids of messages recently sent with a client_msg_id, so a retry is answered without the database
+    private final ExpiringLruCache<SendKey, Long> recentSends;
 
-    public ChatService(DatabaseService db) {
+    public ChatService(DatabaseService db, MessageWriter messageWriter, RecentMessageCache recentMessages,
+                       UserService userService, int sendDedupeEntries, int sendDedupeWindowSeconds) {
         this.db = db;
+        this.messageWriter = messageWriter;
+        this.recentMessages = recentMessages;
+        this.userService = userService;
+        this.memberships = new GroupMembershipIndex(db);
+        this.recentSends = new ExpiringLruCache<>(sendDedupeEntries, sendDedupeWindowSeconds, TimeUnit.SECONDS);
+
+        Metrics.register("send_dedupe_hits", recentSends::hits);
+        Metrics.register("send_dedupe_misses", recentSends::misses);
     }
 
-    public void savePrivateMessage(int senderId, int receiverId, String content) throws SQLException {
+    /**
+     * Returns once the message is committed, batched with whatever else is being sent right now.
+     * clientMsgId may be null; a repeated one returns the first send's message as a duplicate.
+     */
+    public SentMessage savePrivateMessage(int senderId, int receiverId, String content, String clientMsgId)
+            throws SQLException {
+        SendKey key = clientMsgId != null ? new SendKey(senderId, false, clientMsgId) : null;
+        Long earlier = key != null ? recentSends.getIfPresent(key) : null;
+        if (earlier != null) return new SentMessage(earlier, true);
+
+        SentMessage sent = MessageWriter.await(messageWriter.savePrivate(senderId, receiverId, content, clientMsgId));
+        if (key != null) recentSends.put(key, sent.id());
+        return sent;
+    }
+
+    public StreamingPayload fetchPrivateHistory(int userA, int userB) throws SQLException {
         String sql = """
-                    INSERT INTO messages (sender_id, receiver_id, content)
-                    VALUES (?, ?, ?)
-                """;
+        SELECT m.id, m.sender_id, m.content, u.username, u.avatar_url
+        FROM messages m
+        LEFT JOIN users u ON u.id = m.sender_id
+        WHERE (m.sender_id=? AND m.receiver_id=?)
+           OR (m.sender_id=? AND m.receiver_id=?)
+        ORDER BY m.id
+    """;
 
+        return JsonRowStream.open(db, sql, ps -> {
+            ps.setInt(1, userA);
+            ps.setInt(2, userB);
+            ps.setInt(3, userB);
+            ps.setInt(4, userA);
+        }, ChatService::writeMessage);
+    }
+
+    // Same shape for private and group history
+    private static void writeMessage(ResultSet rs, JsonWriter out) throws SQLException, IOException {
+        String username = rs.getString("username");
+        String avatarUrl = rs.getString("avatar_url");
+
+        out.beginObject();
+        out.name("id").value(rs.getLong("id"));
+        out.name("sender_id").value(rs.getInt("sender_id"));
+        out.name("sender_username").value(username != null ? username : "Unknown");
+        out.name("avatar_url").value(avatarUrl != null ? avatarUrl : "");
+        out.name("content").value(rs.getString("content"));
+        out.endObject();
+    }
+
+    /**
+     * Up to limit messages before beforeId (or after afterId when it is set), found by walking the
+     * (sender_id, receiver_id, id) index from the cursor instead of reading the whole conversation.
+     * Each direction of the conversation is a separate index range, the two are merged by id.
+     */
+    public HistoryPage fetchPrivateHistoryPage(int userA, int userB, Long beforeId, Long afterId, int limit)
+            throws SQLException {
+        String conversation = RecentMessageCache.privateConversation(userA, userB);
+        RecentMessageCache.Slice cached = recentMessages.page(conversation, beforeId, afterId, limit);
+        if (cached != null) return fromCache(cached);
+
+        long evictions = recentMessages.evictions();
+        HistoryPage page = queryPrivateHistoryPage(userA, userB, beforeId, afterId, limit);
+        if (beforeId == null && afterId == null) seedCache(conversation, page, evictions);
+        return page;
+    }
+
+    private HistoryPage queryPrivateHistoryPage(int userA, int userB, Long beforeId, Long afterId, int limit)
+            throws SQLException {
+        boolean forward = afterId != null;
+        String cmp = forward ? ">" : "<";
+        String order = forward ? "ASC" : "DESC";
+        String side = "SELECT id, sender_id, content FROM messages WHERE sender_id=? AND receiver_id=? AND id "
+                + cmp + " ? ORDER BY id " + order + " LIMIT ?";
+        // UNION rather than UNION ALL so a conversation with yourself isn't returned twice
+        String sql = "SELECT m.id, m.sender_id, m.content, u.username, u.avatar_url FROM ((" + side
+                + ") UNION (" + side + ")) m LEFT JOIN users u ON u.id = m.sender_id ORDER BY m.id "
+                + order + " LIMIT ?";
+
+        long cursor = cursor(beforeId, afterId);
         try (Connection conn = db.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
-
-            ps.setInt(1, senderId);
-            ps.setInt(2, receiverId);
-            ps.setString(3, content);
-            ps.executeUpdate();
+            ps.setInt(1, userA);
+            ps.setInt(2, userB);
+            ps.setLong(3, cursor);
+            ps.setInt(4, limit + 1);
+            ps.setInt(5, userB);
+            ps.setInt(6, userA);
+            ps.setLong(7, cursor);
+            ps.setInt(8, limit + 1);
+            ps.setInt(9, limit + 1);
+            return readPage(ps, limit, forward);
         }
     }
 
-    public List<Map<String, Object>> fetchPrivateHistory(
-            int userA,
-            int userB,
-            UserService userService
-    ) throws SQLException {
+    public HistoryPage fetchGroupHistoryPage(int groupId, Long beforeId, Long afterId, int limit) throws SQLException {
+        String conversation = RecentMessageCache.groupConversation(groupId);
+        RecentMessageCache.Slice cached = recentMessages.page(conversation, beforeId, afterId, limit);
+        if (cached != null) return fromCache(cached);
 
-        String sql = """
-        SELECT sender_id, content
-        FROM messages
-        WHERE (sender_id=? AND receiver_id=?)
-           OR (sender_id=? AND receiver_id=?)
-        ORDER BY created_at
-    """;
+        long evictions = recentMessages.evictions();
+        HistoryPage page = queryGroupHistoryPage(groupId, beforeId, afterId, limit);
+        if (beforeId == null && afterId == null) seedCache(conversation, page, evictions);
+        return page;
+    }
 
-        List<Map<String, Object>> messages = new ArrayList<>();
+    private HistoryPage queryGroupHistoryPage(int groupId, Long beforeId, Long afterId, int limit) throws SQLException {
+        boolean forward = afterId != null;
+        String sql = """
+        SELECT m.id, m.sender_id, m.content, u.username, u.avatar_url
+        FROM group_messages m
+        LEFT JOIN users u ON u.id = m.sender_id
+        WHERE m.group_id = ? AND m.id %s ?
+        ORDER BY m.id %s
+        LIMIT ?
+    """.formatted(forward ? ">" : "<", forward ? "ASC" : "DESC");
 
         try (Connection conn = db.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, groupId);
+            ps.setLong(2, cursor(beforeId, afterId));
+            ps.setInt(3, limit + 1);
+            return readPage(ps, limit, forward);
+        }
+    }
 
-            ps.setInt(1, userA);
-            ps.setInt(2, userB);
-            ps.setInt(3, userB);
-            ps.setInt(4, userA);
+    private static long cursor(Long beforeId, Long afterId) {
+        if (afterId != null) return afterId;
+        return beforeId != null ? beforeId : Long.MAX_VALUE;
+    }
 
-            ResultSet rs = ps.executeQuery();
+    // Rows arrive walking away from the cursor, one more than the page to tell whether there is a next page
+    private static HistoryPage readPage(PreparedStatement ps, int limit, boolean forward) throws SQLException {
+        List<Map<String, Object>> messages = new ArrayList<>();
+        boolean more = false;
+        try (ResultSet rs = ps.executeQuery()) {
             while (rs.next()) {
+                if (messages.size() == limit) {
+                    more = true;
+                    break;
+                }
+                messages.add(historyRow(rs.getLong("id"), rs.getInt("sender_id"),
+                        rs.getString("username"), rs.getString("avatar_url"), rs.getString("content")));
+            }
+        }
 
-                int senderId = rs.getInt("sender_id");
-                User u = userService.getById(senderId);
+        Long next = more ? (Long) messages.get(messages.size() - 1).get("id") : null;
+        if (!forward) Collections.reverse(messages);
+        return new HistoryPage(messages, next);
+    }
 
-                messages.add(Map.of(
-                        "sender_id", senderId,
-                        "sender_username", u != null ? u.getUsername() : "Unknown",
-                        "avatar_url", u != null && u.getAvatarUrl() != null ? u.getAvatarUrl() : "",
-                        "content", rs.getString("content")
-                ));
-            }
+    // Sender names and avatars come from the profile cache, the same data the query would join
+    private HistoryPage fromCache(RecentMessageCache.Slice slice) throws SQLException {
+        Set<Integer> senders = new HashSet<>();
+        for (RecentMessageCache.CachedMessage m : slice.messages()) senders.add(m.senderId());
+        Map<Integer, UserProfile> profiles = userService.getProfiles(senders);
+
+        List<Map<String, Object>> messages = new ArrayList<>(slice.messages().size());
+        for (RecentMessageCache.CachedMessage m : slice.messages()) {
+            UserProfile sender = profiles.get(m.senderId());
+            messages.add(historyRow(m.id(), m.senderId(),
+                    sender != null ? sender.username() : null, sender != null ? sender.avatarUrl() : null, m.content()));
         }
-        return messages;
+        return new HistoryPage(messages, slice.nextCursor());
+    }
+
+    private void seedCache(String conversation, HistoryPage page, long evictions) {
+        List<RecentMessageCache.CachedMessage> newest = new ArrayList<>(page.messages().size());
+        for (Map<String, Object> m : page.messages()) {
+            newest.add(new RecentMessageCache.CachedMessage(
+                    (Long) m.get("id"), (Integer) m.get("sender_id"), (String) m.get("content")));
+        }
+        recentMessages.seed(conversation, newest, page.nextCursor() != null, evictions);
+    }
+
+    private static Map<String, Object> historyRow(long id, int senderId, String username, String avatarUrl, String content) {
+        Map<String, Object> message = new LinkedHashMap<>();
+        message.put("id", id);
+        message.put("sender_id", senderId);
+        message.put("sender_username", username != null ? username : "Unknown");
+        message.put("avatar_url", avatarUrl != null ? avatarUrl : "");
+        message.put("content", content);
+        return message;
+    }
+
+
+    public SentMessage saveGroupMessage(int senderId, int groupId, String content, String clientMsgId)
+            throws SQLException {
+        SendKey key = clientMsgId != null ? new SendKey(senderId, true, clientMsgId) : null;
+        Long earlier = key != null ? recentSends.getIfPresent(key) : null;
+        if (earlier != null) return new SentMessage(earlier, true);
+
+        SentMessage sent = MessageWriter.await(messageWriter.saveGroup(senderId, groupId, content, clientMsgId));
+        if (key != null) recentSends.put(key, sent.id());
+        return sent;
+    }
+
+    public StreamingPayload fetchGroupHistory(int groupId) throws SQLException {
+        String sql = """
+        SELECT m.id, m.sender_id, m.content, u.username, u.avatar_url
+        FROM group_messages m
+        LEFT JOIN users u ON u.id = m.sender_id
+        WHERE m.group_id = ?
+        ORDER BY m.id
+    """;
+
+        return JsonRowStream.open(db, sql, ps -> ps.setInt(1, groupId), ChatService::writeMessage);
     }
 
 
-    public void saveGroupMessage(int senderId, int groupId, String content) throws SQLException {
+
+    // People the user has chatted with, most recent first, read from the conversations index
+    public List<Map<String, Object>> listPrivateConversations(int userId) throws SQLException {
         String sql = """
-                    INSERT INTO group_messages (group_id, sender_id, content)
-                    VALUES (?, ?, ?)
+                    SELECT c.peer_id, c.last_message_id, c.last_message_at, c.last_sender_id, c.last_preview,
+                           c.unread_count, u.username, u.avatar_url
+                    FROM conversations c
+                    JOIN users u ON u.id = c.peer_id
+                    WHERE c.user_id = ? AND c.peer_id <> ?
+                    ORDER BY c.last_message_id DESC
                 """;
 
+        List<Map<String, Object>> users = new ArrayList<>();
         try (Connection conn = db.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
 
-            ps.setInt(1, groupId);
-            ps.setInt(2, senderId);
-            ps.setString(3, content);
-            ps.executeUpdate();
+            ps.setInt(1, userId);
+            ps.setInt(2, userId);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                Map<String, Object> user = new LinkedHashMap<>();
+                user.put("id", rs.getInt("peer_id"));
+                user.put("username", rs.getString("username"));
+                user.put("avatar_url", rs.getString("avatar_url") != null ? rs.getString("avatar_url") : "");
+                putLastMessage(user, rs);
+                users.add(user);
+            }
         }
+        return users;
     }
 
-    public List<GroupMessage> fetchGroupHistory(int groupId) throws SQLException {
+    // Every group the user is in, the ones with the most recent messages first
+    public List<Map<String, Object>> listGroupConversations(int userId) throws SQLException {
         String sql = """
-        SELECT id, group_id, sender_id, content, created_at
-        FROM group_messages
-        WHERE group_id = ?
-        ORDER BY created_at
-    """;
-
-        List<GroupMessage> messages = new ArrayList<>();
+                    SELECT g.id, g.name, g.avatar_url, g.about, c.last_message_id, c.last_message_at,
+                           c.last_sender_id, c.last_preview,
+                           (SELECT COUNT(*) FROM group_messages m
+                            WHERE m.group_id = gm.group_id AND m.id > gm.last_read_id
+                              AND m.sender_id <> gm.user_id) AS unread_count
+                    FROM group_members gm
+                    JOIN chat_groups g ON g.id = gm.group_id
+                    LEFT JOIN group_conversations c ON c.group_id = gm.group_id
+                    WHERE gm.user_id = ?
+                    ORDER BY c.last_message_id IS NULL, c.last_message_id DESC
+                """;
 
+        List<Map<String, Object>> groups = new ArrayList<>();
         try (Connection conn = db.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
 
-            ps.setInt(1, groupId);
+            ps.setInt(1, userId);
             ResultSet rs = ps.executeQuery();
-
             while (rs.next()) {
-                messages.add(new GroupMessage(
-                        rs.getInt("id"),
-                        rs.getInt("group_id"),
-                        rs.getInt("sender_id"),
-                        rs.getString("content"),
-                        rs.getTimestamp("created_at")
-                ));
+                Map<String, Object> group = new LinkedHashMap<>();
+                group.put("id", rs.getInt("id"));
+                group.put("name", rs.getString("name"));
+                group.put("avatar_url", rs.getString("avatar_url") != null ? rs.getString("avatar_url") : "");
+                group.put("about", rs.getString("about") != null ? rs.getString("about") : "");
+                rs.getLong("last_message_id");
+                if (!rs.wasNull()) putLastMessage(group, rs);
+                groups.add(group);
             }
         }
-        return messages;
+        return groups;
     }
 
+    private static void putLastMessage(Map<String, Object> row, ResultSet rs) throws SQLException {
+        row.put("last_message", Map.of(
+                "id", rs.getLong("last_message_id"),
+                "sender_id", rs.getInt("last_sender_id"),
+                "preview", rs.getString("last_preview") != null ? rs.getString("last_preview") : "",
+                "created_at", rs.getTimestamp("last_message_at").toString()
+        ));
+        row.put("unread_count", rs.getInt("unread_count"));
+    }
 
+    public void markPrivateRead(int userId, int peerId) throws SQLException {
+        String sql = """
+                    UPDATE conversations SET unread_count = 0
+                    WHERE user_id = ? AND peer_id = ? AND unread_count > 0
+                """;
+        try (Connection conn = db.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, userId);
+            ps.setInt(2, peerId);
+            ps.executeUpdate();
+        }
+    }
 
-    public List<Integer> getGroupMembers(int groupId) throws SQLException {
+    // Moves the member's read marker to the group's newest message
+    public void markGroupRead(int userId, int groupId) throws SQLException {
         String sql = """
-                    SELECT user_id FROM group_members WHERE group_id=?
+                    UPDATE group_members gm
+                    JOIN group_conversations c ON c.group_id = gm.group_id
+                    SET gm.last_read_id = c.last_message_id
+                    WHERE gm.group_id = ? AND gm.user_id = ? AND gm.last_read_id < c.last_message_id
                 """;
+        try (Connection conn = db.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, groupId);
+            ps.setInt(2, userId);
+            ps.executeUpdate();
+        }
+    }
 
-        List<Integer> members = new ArrayList<>();
+    // chatType is "private" or "group", userIds are the recipients the push didn't reach
+    public void recordUndelivered(String chatType, long messageId, int[] userIds) throws SQLException {
+        if (userIds.length == 0) return;
+        String sql = "INSERT IGNORE INTO pending_deliveries (user_id, chat_type, message_id) VALUES (?, ?, ?)";
         try (Connection conn = db.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (int userId : userIds) {
+                ps.setInt(1, userId);
+                ps.setString(2, chatType);
+                ps.setLong(3, messageId);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
 
-            ps.setInt(1, groupId);
-            ResultSet rs = ps.executeQuery();
-            while (rs.next()) {
-                members.add(rs.getInt("user_id"));
+    public boolean hasPendingMessages(int userId) throws SQLException {
+        String sql = "SELECT 1 FROM pending_deliveries WHERE user_id = ? LIMIT 1";
+        try (Connection conn = db.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, userId);
+            return ps.executeQuery().next();
+        }
+    }
+
+    // Everything waiting for the user, in the shape of a send_message push, oldest first
+    public StreamingPayload fetchPendingMessages(int userId) throws SQLException {
+        String sql = """
+        SELECT 'private' AS chat_type, m.id, m.sender_id, m.receiver_id, NULL AS group_id, m.content, m.created_at,
+               u.username, u.avatar_url
+        FROM pending_deliveries p
+        JOIN messages m ON m.id = p.message_id
+        LEFT JOIN users u ON u.id = m.sender_id
+        WHERE p.user_id = ? AND p.chat_type = 'private'
+        UNION ALL
+        SELECT 'group', m.id, m.sender_id, NULL, m.group_id, m.content, m.created_at, u.username, u.avatar_url
+        FROM pending_deliveries p
+        JOIN group_messages m ON m.id = p.message_id
+        LEFT JOIN users u ON u.id = m.sender_id
+        WHERE p.user_id = ? AND p.chat_type = 'group'
+        ORDER BY created_at, id
+    """;
+
+        return JsonRowStream.open(db, sql, ps -> {
+            ps.setInt(1, userId);
+            ps.setInt(2, userId);
+        }, (rs, out) -> {
+            String username = rs.getString("username");
+            String avatarUrl = rs.getString("avatar_url");
+            boolean group = "group".equals(rs.getString("chat_type"));
+
+            out.beginObject();
+            out.name("chat_type").value(group ? "group" : "private");
+            out.name("id").value(rs.getLong("id"));
+            out.name("sender_id").value(rs.getInt("sender_id"));
+            out.name("sender_username").value(username != null ? username : "Unknown");
+            out.name("avatar_url").value(avatarUrl != null ? avatarUrl : "");
+            if (group) {
+                out.name("group_id").value(rs.getInt("group_id"));
+            } else {
+                out.name("receiver_id").value(rs.getInt("receiver_id"));
+            }
+            out.name("content").value(rs.getString("content"));
+            out.name("created_at").value(rs.getTimestamp("created_at").toString());
+            out.endObject();
+        });
+    }
+
+    // Returns how many pending rows the acks removed
+    public int acknowledgeMessages(int userId, List<Long> messageIds, List<Long> groupMessageIds) throws SQLException {
+        try (Connection conn = db.getConnection()) {
+            return deletePending(conn, userId, "private", messageIds)
+                    + deletePending(conn, userId, "group", groupMessageIds);
+        }
+    }
+
+    private static int deletePending(Connection conn, int userId, String chatType, List<Long> ids) throws SQLException {
+        if (ids == null) return 0;
+        int removed = 0;
+        for (int from = 0; from < ids.size(); from += ACK_BATCH) {
+            List<Long> batch = ids.subList(from, Math.min(ids.size(), from + ACK_BATCH));
+            String sql = "DELETE FROM pending_deliveries WHERE user_id = ? AND chat_type = ? AND message_id IN ("
+                    + String.join(",", Collections.nCopies(batch.size(), "?")) + ")";
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setInt(1, userId);
+                ps.setString(2, chatType);
+                for (int i = 0; i < batch.size(); i++) {
+                    ps.setLong(i + 3, batch.get(i));
+                }
+                removed += ps.executeUpdate();
             }
         }
-        return members;
+        return removed;
+    }
+
+    // Sorted member ids from the in-memory index, don't modify the array
+    public int[] getGroupMembers(int groupId) throws SQLException {
+        return memberships.members(groupId);
     }
 
     public int createGroup(String name, String about, String avatarUrl, int creatorId) throws SQLException {
@@ -155,6 +477,7 @@ public class ChatService {
             ResultSet keys = ps.getGeneratedKeys();
             if (keys.next()) {
                 int groupId = keys.getInt(1);
+                memberships.created(groupId);
                 addUserToGroup(groupId, creatorId, "owner");
                 return groupId;
             } else {
@@ -163,21 +486,27 @@ public class ChatService {
         }
     }
 
-    public void addUsersToGroup(int groupId, List<Integer> userIds) throws SQLException {
-        String sql = "INSERT INTO group_members (group_id, user_id, role) VALUES (?, ?, ?)";
+    // New members start with everything sent so far read
+    private static final String ADD_MEMBER = """
+                INSERT INTO group_members (group_id, user_id, role, last_read_id)
+                VALUES (?, ?, ?, COALESCE((SELECT last_message_id FROM group_conversations WHERE group_id = ?), 0))
+            """;
 
+    public void addUsersToGroup(int groupId, List<Integer> userIds) throws SQLException {
         try (Connection conn = db.getConnection()) {
             conn.setAutoCommit(false);
 
-            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            try (PreparedStatement ps = conn.prepareStatement(ADD_MEMBER)) {
                 for (int userId : userIds) {
                     ps.setInt(1, groupId);
                     ps.setInt(2, userId);
                     ps.setString(3, "member");
+                    ps.setInt(4, groupId);
                     ps.addBatch();
                 }
                 ps.executeBatch();
                 conn.commit();
+                memberships.added(groupId, userIds.stream().mapToInt(Integer::intValue).toArray());
             } catch (SQLException e) {
                 conn.rollback();
                 throw e;
@@ -186,29 +515,19 @@ public class ChatService {
     }
 
     public void addUserToGroup(int groupId, int userId, String role) throws SQLException {
-        String sql = "INSERT INTO group_members (group_id, user_id, role) VALUES (?, ?, ?)";
         try (Connection conn = db.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sql)) {
+             PreparedStatement ps = conn.prepareStatement(ADD_MEMBER)) {
             ps.setInt(1, groupId);
             ps.setInt(2, userId);
             ps.setString(3, role);
+            ps.setInt(4, groupId);
             ps.executeUpdate();
+            memberships.added(groupId, userId);
         }
     }
 
     public boolean isUserInGroup(int groupId, int userId) throws SQLException {
-        String sql = "SELECT COUNT(*) FROM group_members WHERE group_id = ? AND user_id = ?";
-        try (Connection conn = db.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setInt(1, groupId);
-            ps.setInt(2, userId);
-
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) {
-                return rs.getInt(1) > 0;
-            }
-            return false;
-        }
+        return memberships.contains(groupId, userId);
     }
 
     // List groups a user belongs to
@@ -243,15 +562,7 @@ public class ChatService {
 
     // Leave group
     public boolean leaveGroup(int groupId, int userId) throws SQLException {
-        String sql = "DELETE FROM group_members WHERE group_id=? AND user_id=?";
-
-        try (Connection conn = db.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-
-            ps.setInt(1, groupId);
-            ps.setInt(2, userId);
-            return ps.executeUpdate() > 0;
-        }
+        return removeUserFromGroup(groupId, userId);
     }
     public boolean isAdminInGroup(int groupId, int userId) throws SQLException {
         String sql = "SELECT role FROM group_members WHERE group_id = ? AND user_id = ?";
@@ -271,7 +582,9 @@ public class ChatService {
              PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setInt(1, groupId);
             ps.setInt(2, userId);
-            return ps.executeUpdate() > 0;
+            boolean removed = ps.executeUpdate() > 0;
+            memberships.removed(groupId, userId);
+            return removed;
         }
     }
     public boolean isOwnerInGroup(int groupId, int userId) throws SQLException {
@@ -338,16 +651,43 @@ public class ChatService {
 
             if (!rs.next()) return null; // group not found
 
-            return Map.of(
-                    "id", rs.getInt("id"),
-                    "name", rs.getString("name"),
-                    "about", rs.getString("about"),
-                    "avatar_url", rs.getString("avatar_url"),
-                    "created_by", rs.getInt("created_by")
-            );
+            return groupInfo(rs);
+        }
+    }
+
+    // Groups that don't exist are left out
+    public Map<Integer, Map<String, Object>> getGroupsInfo(Collection<Integer> groupIds) throws SQLException {
+        Map<Integer, Map<String, Object>> groups = new HashMap<>();
+        if (groupIds.isEmpty()) return groups;
+
+        String sql = "SELECT id, name, about, avatar_url, created_by FROM chat_groups WHERE id IN ("
+                + String.join(", ", Collections.nCopies(groupIds.size(), "?")) + ")";
+        try (Connection conn = db.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+
+            int i = 1;
+            for (int groupId : groupIds) {
+                ps.setInt(i++, groupId);
+            }
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                groups.put(rs.getInt("id"), groupInfo(rs));
+            }
         }
+        return groups;
+    }
+
+    // about and avatar_url may be null, so not Map.of
+    private static Map<String, Object> groupInfo(ResultSet rs) throws SQLException {
+        Map<String, Object> group = new LinkedHashMap<>();
+        group.put("id", rs.getInt("id"));
+        group.put("name", rs.getString("name"));
+        group.put("about", rs.getString("about"));
+        group.put("avatar_url", rs.getString("avatar_url"));
+        group.put("created_by", rs.getInt("created_by"));
+        return group;
     }
-    public List<Map<String, Object>> getGroupMembersDetailed(int groupId) throws SQLException {
+    public StreamingPayload getGroupMembersDetailed(int groupId) throws SQLException {
         String sql = """
         SELECT u.id, u.username, u.avatar_url, gm.role
         FROM group_members gm
@@ -355,23 +695,14 @@ public class ChatService {
         WHERE gm.group_id = ?
     """;
 
-        List<Map<String, Object>> result = new ArrayList<>();
-        Connection conn = db.getConnection();
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setInt(1, groupId);
-            ResultSet rs = ps.executeQuery();
-
-            while (rs.next()) {
-                Map<String, Object> m = new LinkedHashMap<>();
-                m.put("id", rs.getInt("id"));
-                m.put("username", rs.getString("username"));
-                m.put("avatar_url", rs.getString("avatar_url"));
-                m.put("role", rs.getString("role"));
-                result.add(m);
-            }
-        }
-
-        return result;
+        return JsonRowStream.open(db, sql, ps -> ps.setInt(1, groupId), (rs, out) -> {
+            out.beginObject();
+            out.name("id").value(rs.getInt("id"));
+            out.name("username").value(rs.getString("username"));
+            out.name("avatar_url").value(rs.getString("avatar_url"));
+            out.name("role").value(rs.getString("role"));
+            out.endObject();
+        });
     }
 
 
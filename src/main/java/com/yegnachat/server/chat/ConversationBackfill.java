@@ -0,0 +1,74 @@
+package com.yegnachat.server.chat;
+
+import com.yegnachat.server.DatabaseService;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Builds the conversations and group_conversations tables from message history that was stored
+ * before they existed. Each runs once at startup, when the table is still empty but its messages
+ * aren't; MessageWriter keeps them current from then on. Unread counts start at zero.
+ */
+public final class ConversationBackfill {
+
+    private static final String PRIVATE = """
+            INSERT IGNORE INTO conversations
+                (user_id, peer_id, last_message_id, last_message_at, last_sender_id, last_preview, unread_count)
+            SELECT c.user_id, c.peer_id, m.id, m.created_at, m.sender_id, LEFT(m.content, 100), 0
+            FROM (
+                SELECT user_id, peer_id, MAX(id) AS last_id
+                FROM (
+                    SELECT sender_id AS user_id, receiver_id AS peer_id, id FROM messages
+                    UNION ALL
+                    SELECT receiver_id, sender_id, id FROM messages WHERE receiver_id <> sender_id
+                ) pairs
+                GROUP BY user_id, peer_id
+            ) c
+            JOIN messages m ON m.id = c.last_id
+            """;
+
+    private static final String GROUPS = """
+            INSERT IGNORE INTO group_conversations
+                (group_id, last_message_id, last_message_at, last_sender_id, last_preview)
+            SELECT m.group_id, m.id, m.created_at, m.sender_id, LEFT(m.content, 100)
+            FROM (SELECT group_id, MAX(id) AS last_id FROM group_messages GROUP BY group_id) l
+            JOIN group_messages m ON m.id = l.last_id
+            """;
+
+    private static final String GROUPS_READ = """
+            UPDATE group_members gm
+            JOIN group_conversations c ON c.group_id = gm.group_id
+            SET gm.last_read_id = c.last_message_id
+            """;
+
+    private ConversationBackfill() {
+    }
+
+    public static void runIfNeeded(DatabaseService db) {
+        try (Connection conn = db.getConnection(); Statement st = conn.createStatement()) {
+            long started = System.currentTimeMillis();
+            int rows = 0;
+            if (!exists(st, "SELECT 1 FROM conversations LIMIT 1") && exists(st, "SELECT 1 FROM messages LIMIT 1")) {
+                rows += st.executeUpdate(PRIVATE);
+            }
+            if (!exists(st, "SELECT 1 FROM group_conversations LIMIT 1") && exists(st, "SELECT 1 FROM group_messages LIMIT 1")) {
+                rows += st.executeUpdate(GROUPS);
+                st.executeUpdate(GROUPS_READ);
+            }
+            if (rows > 0) {
+                System.out.println("Backfilled " + rows + " conversations in " + (System.currentTimeMillis() - started) + " ms");
+            }
+        } catch (SQLException e) {
+            System.err.println("Conversation backfill failed: " + e.getMessage());
+        }
+    }
+
+    private static boolean exists(Statement st, String sql) throws SQLException {
+        try (ResultSet rs = st.executeQuery(sql)) {
+            return rs.next();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.yegnachat.server.chat;
+
+import com.yegnachat.server.DatabaseService;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Members of each group as a sorted int[], loaded from group_members the first time a group is
+ * asked about and then kept up to date by ChatService whenever it changes membership.
+ *
+ * The arrays are never modified, a change swaps in a new one, so lookups and fan-out read them
+ * without locking. Membership changes are rare next to messages, copying is the cheaper side.
+ */
+public class GroupMembershipIndex {
+
+    private final DatabaseService db;
+    private final Map<Integer, int[]> members = new ConcurrentHashMap<>();
+
+    // Bumped by every change, a load that overlapped one is used once but not kept
+    private final AtomicLong changes = new AtomicLong();
+
+    public GroupMembershipIndex(DatabaseService db) {
+        this.db = db;
+    }
+
+    public boolean contains(int groupId, int userId) throws SQLException {
+        return Arrays.binarySearch(members(groupId), userId) >= 0;
+    }
+
+    // Sorted member ids, the caller must not modify the array
+    public int[] members(int groupId) throws SQLException {
+        int[] cached = members.get(groupId);
+        if (cached != null) return cached;
+
+        long seen = changes.get();
+        int[] loaded = load(groupId);
+        // Unknown group ids from clients aren't worth remembering
+        if (loaded.length == 0 || changes.get() != seen) return loaded;
+        int[] raced = members.putIfAbsent(groupId, loaded);
+        if (raced != null) return raced;
+
+        // A change between the check and the put found no entry to update, so what was put may be
+        // stale, and so may anything since built on it. Dropping the entry only costs a reload
+        if (changes.get() != seen) members.remove(groupId);
+        return loaded;
+    }
+
+    // A group that was just created, nobody is in it until the creator is added
+    void created(int groupId) {
+        changes.incrementAndGet();
+        members.put(groupId, new int[0]);
+    }
+
+    void added(int groupId, int... userIds) {
+        changes.incrementAndGet();
+        members.computeIfPresent(groupId, (id, current) -> {
+            int[] next = Arrays.copyOf(current, current.length + userIds.length);
+            System.arraycopy(userIds, 0, next, current.length, userIds.length);
+            Arrays.sort(next);
+            int size = 0;
+            for (int userId : next) {
+                if (size == 0 || next[size - 1] != userId) next[size++] = userId;
+            }
+            return size == next.length ? next : Arrays.copyOf(next, size);
+        });
+    }
+
+    void removed(int groupId, int userId) {
+        changes.incrementAndGet();
+        members.computeIfPresent(groupId, (id, current) -> {
+            int at = Arrays.binarySearch(current, userId);
+            if (at < 0) return current;
+            int[] next = new int[current.length - 1];
+            System.arraycopy(current, 0, next, 0, at);
+            System.arraycopy(current, at + 1, next, at, next.length - at);
+            return next;
+        });
+    }
+
+    private int[] load(int groupId) throws SQLException {
+        String sql = "SELECT user_id FROM group_members WHERE group_id = ? ORDER BY user_id";
+        try (Connection conn = db.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+
+            ps.setInt(1, groupId);
+            ResultSet rs = ps.executeQuery();
+            int[] ids = new int[16];
+            int size = 0;
+            while (rs.next()) {
+                if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+                ids[size++] = rs.getInt(1);
+            }
+            return Arrays.copyOf(ids, size);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.yegnachat.server.chat;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One page of a conversation, oldest message first. nextCursor is the id to pass as before_id
+ * (or after_id, when paging forward) for the following page, null when there is nothing more.
+ */
+public record HistoryPage(List<Map<String, Object>> messages, Long nextCursor) {
+}
@@ -0,0 +1,351 @@
+package com.yegnachat.server.chat;
+
+import com.yegnachat.server.DatabaseService;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit for chat messages. Sends from any number of threads are collected by one writer
+ * thread and stored with one multi-row INSERT per table in a single transaction, so a burst of
+ * messages costs one pooled connection and one commit instead of one each.
+ *
+ * A batch is written when it is full or when its first message has waited maxDelay. The future
+ * of every message completes with its id only after the batch has committed and its messages are
+ * in the {@link RecentMessageCache}.
+ */
+public class MessageWriter {
+
+    private static final class Pending {
+        final boolean group;
+        final int senderId;
+        final int targetId; // receiver for private messages, group for group messages
+        final String content;
+        final String clientMsgId; // may be null
+        final CompletableFuture<SentMessage> result = new CompletableFuture<>();
+        long id;
+
+        Pending(boolean group, int senderId, int targetId, String content, String clientMsgId) {
+            this.group = group;
+            this.senderId = senderId;
+            this.targetId = targetId;
+            this.content = content;
+            this.clientMsgId = clientMsgId;
+        }
+    }
+
+    // Characters of the newest message kept in conversations.last_preview
+    private static final int PREVIEW_LENGTH = 100;
+
+    private final DatabaseService db;
+    private final RecentMessageCache recentMessages;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final BlockingQueue<Pending> queue;
+    private final Thread writer;
+    private volatile boolean closed;
+
+    public MessageWriter(DatabaseService db, RecentMessageCache recentMessages, int maxBatch, long maxDelayMicros) {
+        this.db = db;
+        this.recentMessages = recentMessages;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, maxDelayMicros));
+        // Senders block once this many messages are waiting, the database is not keeping up
+        this.queue = new LinkedBlockingQueue<>(this.maxBatch * 32);
+        this.writer = Thread.ofPlatform().name("message-writer").daemon(true).start(this::run);
+    }
+
+    public CompletableFuture<SentMessage> savePrivate(int senderId, int receiverId, String content, String clientMsgId) {
+        return submit(new Pending(false, senderId, receiverId, content, clientMsgId));
+    }
+
+    public CompletableFuture<SentMessage> saveGroup(int senderId, int groupId, String content, String clientMsgId) {
+        return submit(new Pending(true, senderId, groupId, content, clientMsgId));
+    }
+
+    private CompletableFuture<SentMessage> submit(Pending pending) {
+        if (closed) {
+            pending.result.completeExceptionally(new SQLException("Message writer is closed"));
+            return pending.result;
+        }
+        try {
+            queue.put(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.result.completeExceptionally(new SQLException("Interrupted while queueing message", e));
+        }
+        return pending.result;
+    }
+
+    // Waits for the batch holding the message to commit
+    public static SentMessage await(CompletableFuture<SentMessage> result) throws SQLException {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException sql) throw sql;
+            throw new SQLException("Saving message failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while saving message", e);
+        }
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        try {
+            while (!closed || !queue.isEmpty()) {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatch) {
+                    // Take whatever is already waiting before looking at the clock
+                    if (queue.drainTo(batch, maxBatch - batch.size()) > 0) continue;
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) break;
+                    Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+
+                flush(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            batch.addAll(queue);
+            for (Pending p : batch) {
+                p.result.completeExceptionally(new SQLException("Message writer stopped"));
+            }
+        }
+    }
+
+    private void flush(List<Pending> batch) {
+        try {
+            commit(batch);
+            // Only this thread adds, in id order, so a ring never holds a message without the ones before it
+            for (Pending p : batch) {
+                String conversation = p.group
+                        ? RecentMessageCache.groupConversation(p.targetId)
+                        : RecentMessageCache.privateConversation(p.senderId, p.targetId);
+                recentMessages.add(conversation, new RecentMessageCache.CachedMessage(p.id, p.senderId, p.content));
+            }
+            for (Pending p : batch) {
+                p.result.complete(new SentMessage(p.id, false));
+            }
+        } catch (SQLIntegrityConstraintViolationException e) {
+            if (batch.size() == 1) {
+                rejected(batch.get(0), e);
+                return;
+            }
+            // One bad row (e.g. an unknown receiver) must not fail everybody else's message
+            for (Pending p : batch) {
+                flush(List.of(p));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            for (Pending p : batch) {
+                p.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    // A retry whose client_msg_id is already stored resolves to the stored message
+    private void rejected(Pending p, SQLIntegrityConstraintViolationException e) {
+        if (p.clientMsgId != null) {
+            String sql = p.group
+                    ? "SELECT id FROM group_messages WHERE sender_id = ? AND client_msg_id = ?"
+                    : "SELECT id FROM messages WHERE sender_id = ? AND client_msg_id = ?";
+            try (Connection conn = db.getConnection();
+                 PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setInt(1, p.senderId);
+                ps.setString(2, p.clientMsgId);
+                ResultSet rs = ps.executeQuery();
+                if (rs.next()) {
+                    p.result.complete(new SentMessage(rs.getLong(1), true));
+                    return;
+                }
+            } catch (SQLException lookup) {
+                e.addSuppressed(lookup);
+            }
+        }
+        p.result.completeExceptionally(e);
+    }
+
+    private void commit(List<Pending> batch) throws SQLException {
+        try (Connection conn = db.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                insert(conn, batch, false);
+                insert(conn, batch, true);
+                updateConversations(conn, batch);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    private void insert(Connection conn, List<Pending> batch, boolean group) throws SQLException {
+        List<Pending> rows = new ArrayList<>();
+        for (Pending p : batch) {
+            if (p.group == group) rows.add(p);
+        }
+        if (rows.isEmpty()) return;
+
+        StringBuilder sql = new StringBuilder(group
+                ? "INSERT INTO group_messages (group_id, sender_id, content, client_msg_id) VALUES "
+                : "INSERT INTO messages (sender_id, receiver_id, content, client_msg_id) VALUES ");
+        for (int i = 0; i < rows.size(); i++) {
+            sql.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+        }
+
+        try (PreparedStatement ps = conn.prepareStatement(sql.toString(), Statement.RETURN_GENERATED_KEYS)) {
+            int i = 1;
+            for (Pending p : rows) {
+                ps.setInt(i++, group ? p.targetId : p.senderId);
+                ps.setInt(i++, group ? p.senderId : p.targetId);
+                ps.setString(i++, p.content);
+                ps.setString(i++, p.clientMsgId);
+            }
+            ps.executeUpdate();
+
+            // One key per row, in VALUES order
+            try (ResultSet keys = ps.getGeneratedKeys()) {
+                for (Pending p : rows) {
+                    if (!keys.next()) throw new SQLException("Missing generated key");
+                    p.id = keys.getLong(1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the conversations rows of everyone in a private chat, and the group_conversations row of
+     * each group, to the newest message of the batch, in the batch's transaction. Batches commit one
+     * after the other, so the last message of a batch is the conversation's newest.
+     */
+    private void updateConversations(Connection conn, List<Pending> batch) throws SQLException {
+        // user id -> peer id -> row; self chats only have the sender's row
+        Map<Integer, Map<Integer, ConversationRow>> privateRows = new LinkedHashMap<>();
+        // group id -> its last message in the batch
+        Map<Integer, Pending> groups = new LinkedHashMap<>();
+        for (Pending p : batch) {
+            if (p.group) {
+                groups.put(p.targetId, p);
+                continue;
+            }
+            touch(privateRows, p.senderId, p.targetId, p, 0);
+            if (p.targetId != p.senderId) touch(privateRows, p.targetId, p.senderId, p, 1);
+        }
+
+        if (!privateRows.isEmpty()) {
+            StringBuilder sql = new StringBuilder("""
+                    INSERT INTO conversations
+                        (user_id, peer_id, last_message_id, last_sender_id, last_preview, unread_count)
+                    VALUES\s""");
+            int rows = 0;
+            for (Map<Integer, ConversationRow> peers : privateRows.values()) rows += peers.size();
+            for (int i = 0; i < rows; i++) sql.append(i == 0 ? "(?, ?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?, ?)");
+            sql.append('\n').append(CONVERSATION_UPSERT);
+
+            try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+                int i = 1;
+                for (Map.Entry<Integer, Map<Integer, ConversationRow>> user : privateRows.entrySet()) {
+                    for (Map.Entry<Integer, ConversationRow> peer : user.getValue().entrySet()) {
+                        Pending last = peer.getValue().last;
+                        ps.setInt(i++, user.getKey());
+                        ps.setInt(i++, peer.getKey());
+                        ps.setLong(i++, last.id);
+                        ps.setInt(i++, last.senderId);
+                        ps.setString(i++, preview(last.content));
+                        ps.setInt(i++, peer.getValue().unread);
+                    }
+                }
+                ps.executeUpdate();
+            }
+        }
+
+        // One row per group however many members it has, their unread counts follow from their read markers
+        if (!groups.isEmpty()) {
+            StringBuilder sql = new StringBuilder("""
+                    INSERT INTO group_conversations (group_id, last_message_id, last_sender_id, last_preview)
+                    VALUES\s""");
+            for (int i = 0; i < groups.size(); i++) sql.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+            sql.append('\n').append(GROUP_CONVERSATION_UPSERT);
+
+            try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+                int i = 1;
+                for (Map.Entry<Integer, Pending> group : groups.entrySet()) {
+                    Pending last = group.getValue();
+                    ps.setInt(i++, group.getKey());
+                    ps.setLong(i++, last.id);
+                    ps.setInt(i++, last.senderId);
+                    ps.setString(i++, preview(last.content));
+                }
+                ps.executeUpdate();
+            }
+        }
+    }
+
+    private static final String CONVERSATION_UPSERT = """
+            ON DUPLICATE KEY UPDATE
+                unread_count = unread_count + VALUES(unread_count),
+                last_message_id = VALUES(last_message_id),
+                last_message_at = CURRENT_TIMESTAMP,
+                last_sender_id = VALUES(last_sender_id),
+                last_preview = VALUES(last_preview)""";
+
+    private static final String GROUP_CONVERSATION_UPSERT = """
+            ON DUPLICATE KEY UPDATE
+                last_message_id = VALUES(last_message_id),
+                last_message_at = CURRENT_TIMESTAMP,
+                last_sender_id = VALUES(last_sender_id),
+                last_preview = VALUES(last_preview)""";
+
+    private static final class ConversationRow {
+        Pending last;
+        int unread;
+    }
+
+    private static void touch(Map<Integer, Map<Integer, ConversationRow>> rows, int userId, int peerId, Pending p, int unread) {
+        ConversationRow row = rows.computeIfAbsent(userId, id -> new LinkedHashMap<>())
+                .computeIfAbsent(peerId, id -> new ConversationRow());
+        row.last = p;
+        row.unread += unread;
+    }
+
+    static String preview(String content) {
+        if (content == null || content.length() <= PREVIEW_LENGTH) return content;
+        int end = Character.isHighSurrogate(content.charAt(PREVIEW_LENGTH - 1)) ? PREVIEW_LENGTH - 1 : PREVIEW_LENGTH;
+        return content.substring(0, end);
+    }
+
+    // Stops taking messages and waits for the ones already queued to be written
+    public void close() {
+        closed = true;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.yegnachat.server.chat;
+
+import com.yegnachat.server.util.Metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The newest messages of recently active conversations, so reopening a chat doesn't go to MySQL.
+ *
+ * Each conversation keeps its last few messages in a ring ordered by id. A ring is started by the
+ * first message sent to a conversation or by the first newest-page read of it, and from then on
+ * every saved message is added, so a ring never has holes: it holds everything from its oldest
+ * message up. Conversations are dropped least recently used first once the byte budget is used up.
+ */
+public class RecentMessageCache {
+
+    public record CachedMessage(long id, int senderId, String content) {
+
+        // Rough heap cost: object headers, fields and the string's bytes
+        long bytes() {
+            return 64 + (content != null ? 2L * content.length() : 0);
+        }
+    }
+
+    // Messages of a page in id order, plus the cursor for the next page (null on the last one)
+    public record Slice(List<CachedMessage> messages, Long nextCursor) {}
+
+    private static final class Ring {
+        final CachedMessage[] messages;
+        int head;
+        int size;
+        long bytes;
+        // Whether the conversation may have messages older than the ring
+        boolean hasOlder = true;
+
+        Ring(int capacity) {
+            messages = new CachedMessage[capacity];
+        }
+
+        CachedMessage get(int i) {
+            return messages[(head + i) % messages.length];
+        }
+
+        void set(int i, CachedMessage message) {
+            messages[(head + i) % messages.length] = message;
+        }
+
+        // Returns the change in bytes. Messages usually arrive newest last, so the search starts there
+        long add(CachedMessage message) {
+            int at = size;
+            while (at > 0 && get(at - 1).id() > message.id()) at--;
+            if (at > 0 && get(at - 1).id() == message.id()) return 0;
+
+            long delta = message.bytes();
+            if (size == messages.length) {
+                if (at == 0) {
+                    // Older than anything kept
+                    hasOlder = true;
+                    return 0;
+                }
+                delta -= get(0).bytes();
+                set(0, null);
+                head = (head + 1) % messages.length;
+                size--;
+                at--;
+                hasOlder = true;
+            }
+
+            for (int i = size; i > at; i--) {
+                set(i, get(i - 1));
+            }
+            set(at, message);
+            size++;
+            bytes += delta;
+            return delta;
+        }
+    }
+
+    private final int messagesPerConversation;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Ring> rings = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long evictions;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public RecentMessageCache(int messagesPerConversation, long maxBytes) {
+        this.messagesPerConversation = Math.max(1, messagesPerConversation);
+        this.maxBytes = maxBytes;
+
+        Metrics.register("history_cache_hits", hits::get);
+        Metrics.register("history_cache_misses", misses::get);
+        Metrics.register("history_cache_bytes", this::bytes);
+        Metrics.register("history_cache_conversations", this::conversations);
+    }
+
+    public static String privateConversation(int userA, int userB) {
+        return "user:" + Math.min(userA, userB) + ":" + Math.max(userA, userB);
+    }
+
+    public static String groupConversation(int groupId) {
+        return "group:" + groupId;
+    }
+
+    // Called by MessageWriter for every message once it is committed, in id order
+    public synchronized void add(String conversation, CachedMessage message) {
+        if (maxBytes <= 0) return;
+        Ring ring = rings.get(conversation);
+        if (ring == null) {
+            ring = new Ring(messagesPerConversation);
+            rings.put(conversation, ring);
+        }
+        bytes += ring.add(message);
+        trim();
+    }
+
+    /**
+     * The page from memory, or null when the ring can't tell for sure and the database has to be asked.
+     * Same arguments as the database query: at most one of beforeId/afterId, neither means newest.
+     */
+    public Slice page(String conversation, Long beforeId, Long afterId, int limit) {
+        Slice slice;
+        synchronized (this) {
+            Ring ring = rings.get(conversation);
+            slice = ring == null ? null : afterId != null ? after(ring, afterId, limit) : before(ring, beforeId, limit);
+        }
+        (slice != null ? hits : misses).incrementAndGet();
+        return slice;
+    }
+
+    private static Slice before(Ring ring, Long beforeId, int limit) {
+        int end = ring.size;
+        if (beforeId != null) {
+            if (ring.size == 0 || beforeId <= ring.get(0).id()) return null;
+            while (end > 0 && ring.get(end - 1).id() >= beforeId) end--;
+        }
+
+        int start = Math.max(0, end - limit);
+        // Reaching the ring's oldest message, only the database knows whether there are older ones
+        if (start == 0 && ring.hasOlder) return null;
+        boolean more = start > 0;
+
+        List<CachedMessage> messages = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) messages.add(ring.get(i));
+        return new Slice(messages, more ? messages.get(0).id() : null);
+    }
+
+    private static Slice after(Ring ring, long afterId, int limit) {
+        // Messages between afterId and the ring's oldest may only be in the database
+        if (ring.hasOlder && (ring.size == 0 || afterId < ring.get(0).id())) return null;
+
+        int start = 0;
+        while (start < ring.size && ring.get(start).id() <= afterId) start++;
+        int end = Math.min(ring.size, start + limit);
+
+        List<CachedMessage> messages = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) messages.add(ring.get(i));
+        return new Slice(messages, end < ring.size ? messages.get(messages.size() - 1).id() : null);
+    }
+
+    /**
+     * Fills the ring from a newest-page read of the database. Rows committed after that read were
+     * added as they were sent, so the two together have no gaps, unless the conversation was evicted
+     * while the read ran, which evictionsBefore detects.
+     */
+    public synchronized void seed(String conversation, List<CachedMessage> newest, boolean hasOlder, long evictionsBefore) {
+        if (maxBytes <= 0 || evictions != evictionsBefore) return;
+        Ring ring = rings.get(conversation);
+        if (ring == null) {
+            ring = new Ring(messagesPerConversation);
+            rings.put(conversation, ring);
+        } else if (!ring.hasOlder) {
+            return;
+        }
+
+        for (CachedMessage message : newest) {
+            bytes += ring.add(message);
+        }
+        // The ring is complete when it holds the whole read and the read was the whole conversation
+        if (!hasOlder && ring.size < ring.messages.length) ring.hasOlder = false;
+        trim();
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    private void trim() {
+        var it = rings.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().bytes;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    private synchronized long bytes() {
+        return bytes;
+    }
+
+    private synchronized long conversations() {
+        return rings.size();
+    }
+}
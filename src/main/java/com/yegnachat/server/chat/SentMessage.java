@@ -0,0 +1,8 @@
+package com.yegnachat.server.chat;
+
+/**
+ * A stored chat message. duplicate is set when the send repeated an earlier client_msg_id of the
+ * same sender; id is then the message that earlier send stored and nothing new was written.
+ */
+public record SentMessage(long id, boolean duplicate) {
+}
@@ -0,0 +1,124 @@
+package com.yegnachat.server.command;
+
+import com.yegnachat.server.ClientHandler;
+import com.yegnachat.server.auth.AuthService;
+import com.yegnachat.server.auth.SessionInfo;
+import com.yegnachat.server.auth.SessionManager;
+import com.yegnachat.server.chat.ChatService;
+import com.yegnachat.server.protocol.JsonMessage;
+import com.yegnachat.server.user.UserService;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Signup, login, logout and session resume. None of these need an existing session.
+ */
+public class AuthCommands {
+
+    record LoginRequest(String username, String password) {}
+
+    record SignupRequest(String username, String password, String avatarUrl, String bio) {}
+
+    record SessionRequest(String token) {}
+
+    private final AuthService authService;
+    private final UserService userService;
+    private final ChatService chatService;
+
+    public AuthCommands(AuthService authService, UserService userService, ChatService chatService) {
+        this.authService = authService;
+        this.userService = userService;
+        this.chatService = chatService;
+    }
+
+    public void register(CommandRegistry registry) {
+        // Anything that changes the session runs on its own so later requests see the new session
+        registry.registerPublic("login", LoginRequest.class, Ordering.exclusive(), this::login);
+        registry.registerPublic("signup", SignupRequest.class, this::signup);
+        registry.registerPublic("logout", Void.class, Ordering.exclusive(), this::logout);
+        registry.registerPublic("get_session", SessionRequest.class, Ordering.exclusive(), this::getSession);
+    }
+
+    private JsonMessage login(LoginRequest p, ClientHandler sender) throws SQLException {
+        SessionInfo s = authService.login(p.username(), p.password());
+
+        if (s == null) {
+            return new JsonMessage("login_response", Map.of("status", "error"));
+        }
+
+        sender.setSession(s);
+        sendPendingMessages(s.getUserId(), sender);
+        return new JsonMessage("login_response", Map.of(
+                "status", "ok",
+                "token", s.getToken(),
+                "user_id", s.getUserId(),
+                "preferred_language_code", s.getPreferredLanguageCode()
+        ));
+    }
+
+    // Messages sent while the user was offline follow the response as one frame, trimmed by ack_messages
+    private void sendPendingMessages(int userId, ClientHandler sender) {
+        try {
+            if (!chatService.hasPendingMessages(userId)) return;
+            sender.sendAfterReply(new JsonMessage("pending_messages", Map.of(
+                    "messages", chatService.fetchPendingMessages(userId)
+            )));
+        } catch (SQLException e) {
+            // They stay queued for the next login
+            e.printStackTrace();
+        }
+    }
+
+    private JsonMessage signup(SignupRequest p, ClientHandler sender) {
+        String username = p.username().replaceAll("\\s+", "").toLowerCase();
+        String avatarUrl = p.avatarUrl() != null ? p.avatarUrl() : "";
+        String bio = p.bio() != null ? p.bio() : "";
+
+        try {
+            boolean ok = userService.createUser(username, p.password(), avatarUrl, bio);
+            if (ok) {
+                return new JsonMessage("signup_response", Map.of("status", "ok"));
+            }
+            return new JsonMessage("signup_response", Map.of("status", "error", "message", "Username already exists"));
+        } catch (Exception e) {
+            e.printStackTrace();
+            return new JsonMessage("signup_response", Map.of("status", "error", "message", e.getMessage()));
+        }
+    }
+
+    private JsonMessage logout(Void p, ClientHandler sender) {
+        if (sender.getSession() != null) {
+            try {
+                // Invalidate the token from database
+                SessionManager.invalidate(sender.getSession().getToken());
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        // clear session from SessionInfo
+        sender.clearSession();
+        sender.closeAfterReply();
+        return new JsonMessage("logout_response", Map.of("status", "ok"));
+    }
+
+    private JsonMessage getSession(SessionRequest p, ClientHandler sender) throws SQLException {
+        SessionInfo s = SessionManager.get(p.token());
+        if (s == null) {
+            return new JsonMessage("get_session_response", Map.of("status", "error"));
+        }
+
+        if (userService.getProfile(s.getUserId()) == null) {
+            return new JsonMessage("get_session_response", Map.of("status", "error"));
+        }
+
+        sender.setSession(s); // set session in client handler
+        sendPendingMessages(s.getUserId(), sender);
+        return new JsonMessage("get_session_response", Map.of(
+                "status", "ok",
+                "token", s.getToken(),
+                "user_id", s.getUserId(),
+                "preferred_language_code", s.getPreferredLanguageCode()
+        ));
+    }
+}
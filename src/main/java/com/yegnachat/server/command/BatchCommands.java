@@ -0,0 +1,124 @@
+package com.yegnachat.server.command;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.yegnachat.server.ClientHandler;
+import com.yegnachat.server.MessageRouter;
+import com.yegnachat.server.protocol.JsonMessage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Several requests in one frame, answered in one frame. The batch itself is exclusive, so it has the
+ * connection's whole in-flight budget: its requests are scheduled like separate frames would be,
+ * at most parallelism of them at once, and each one fails or succeeds on its own.
+ *
+ * Every reply is turned into a tree as soon as it is done, so a streamed one gives its database
+ * connection back right away instead of holding it until the whole batch is written.
+ */
+public class BatchCommands {
+
+    record BatchRequest(List<JsonElement> requests) {}
+
+    private static final ExecutorService BATCH_THREADS =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("batch-", 0).factory());
+
+    private final MessageRouter router;
+    private final int maxRequests;
+    private final int parallelism;
+
+    public BatchCommands(MessageRouter router, int maxRequests, int parallelism) {
+        this.router = router;
+        this.maxRequests = Math.max(1, maxRequests);
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public void register(CommandRegistry registry) {
+        // Each request checks the session itself, so a batch may start with login or get_session
+        registry.registerPublic("batch", BatchRequest.class, Ordering.exclusive(), this::batch);
+    }
+
+    private JsonMessage batch(BatchRequest p, ClientHandler sender) {
+        List<JsonElement> requests = p.requests() != null ? p.requests() : List.of();
+        if (requests.size() > maxRequests) {
+            return new JsonMessage("batch_response", Map.of(
+                    "status", "error",
+                    "message", "At most " + maxRequests + " requests per batch"
+            ));
+        }
+
+        Semaphore running = new Semaphore(parallelism);
+        List<CompletableFuture<JsonElement>> replies = new ArrayList<>();
+        // Since the last exclusive request: everything started, and the latest one per key
+        List<CompletableFuture<JsonElement>> started = new ArrayList<>();
+        Map<String, CompletableFuture<JsonElement>> sequences = new HashMap<>();
+
+        for (JsonElement element : requests) {
+            CommandRequest request;
+            try {
+                request = router.decode(element.toString());
+            } catch (IOException | RuntimeException e) {
+                replies.add(CompletableFuture.completedFuture(router.toJsonTree(router.malformed(e))));
+                continue;
+            }
+            if ("batch".equals(request.type())) {
+                replies.add(CompletableFuture.completedFuture(router.toJsonTree(
+                        new JsonMessage("error", "Batches can't be nested"))));
+                continue;
+            }
+
+            String key = request.orderingKey();
+            if (key == Ordering.EXCLUSIVE) {
+                started.forEach(CompletableFuture::join);
+                started.clear();
+                sequences.clear();
+                replies.add(CompletableFuture.completedFuture(reply(request, sender)));
+                continue;
+            }
+
+            CompletableFuture<JsonElement> previous = key != null ? sequences.get(key) : null;
+            CompletableFuture<JsonElement> reply = previous == null
+                    ? CompletableFuture.supplyAsync(() -> reply(request, sender, running), BATCH_THREADS)
+                    : previous.thenApplyAsync(r -> reply(request, sender, running), BATCH_THREADS);
+            if (key != null) sequences.put(key, reply);
+            started.add(reply);
+            replies.add(reply);
+        }
+
+        return new JsonMessage("batch_response", Map.of(
+                "status", "ok",
+                "responses", replies.stream().map(CompletableFuture::join).toList()
+        ));
+    }
+
+    private JsonElement reply(CommandRequest request, ClientHandler sender, Semaphore running) {
+        running.acquireUninterruptibly();
+        try {
+            return reply(request, sender);
+        } finally {
+            running.release();
+        }
+    }
+
+    // Never throws, so one failing request can't take the others down
+    private JsonElement reply(CommandRequest request, ClientHandler sender) {
+        JsonMessage response;
+        try {
+            response = router.execute(request, sender);
+            if (response == null) return JsonNull.INSTANCE;
+            return router.toJsonTree(response);
+        } catch (RuntimeException e) {
+            response = new JsonMessage("error", "Exception:" + e.getMessage());
+            if (request.requestId() != null) response.setRequestId(request.requestId());
+            return router.toJsonTree(response);
+        }
+    }
+}
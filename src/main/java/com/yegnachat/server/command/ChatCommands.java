@@ -0,0 +1,249 @@
+package com.yegnachat.server.command;
+
+import com.google.gson.Gson;
+import com.yegnachat.server.ClientHandler;
+import com.yegnachat.server.chat.ChatService;
+import com.yegnachat.server.chat.HistoryPage;
+import com.yegnachat.server.chat.SentMessage;
+import com.yegnachat.server.net.OutboundFrame;
+import com.yegnachat.server.protocol.JsonMessage;
+import com.yegnachat.server.user.UserProfile;
+import com.yegnachat.server.user.UserService;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sending messages and fetching private or group history.
+ */
+public class ChatCommands {
+
+    // Exactly one of receiverId / groupId is expected. clientMsgId is optional, a retry repeats it
+    record SendMessageRequest(Integer receiverId, Integer groupId, String content, String clientMsgId) {}
+
+    // user_id or group_id, depending on chat_type. Without before_id, after_id or limit the whole
+    // conversation is returned
+    record FetchHistoryRequest(String chatType, Integer userId, Integer groupId, Long beforeId, Long afterId, Integer limit) {
+
+        boolean paged() {
+            return beforeId != null || afterId != null || limit != null;
+        }
+    }
+
+    // Ids of pushed or pending_messages messages the client has stored
+    record AckMessagesRequest(List<Long> messageIds, List<Long> groupMessageIds) {}
+
+    private static final int DEFAULT_HISTORY_PAGE = 50;
+    private static final int MAX_HISTORY_PAGE = 200;
+
+    // Size of the client_msg_id columns
+    private static final int MAX_CLIENT_MSG_ID = 64;
+
+    private final Gson gson = new Gson();
+    private final ChatService chatService;
+    private final UserService userService;
+
+    public ChatCommands(ChatService chatService, UserService userService) {
+        this.chatService = chatService;
+        this.userService = userService;
+    }
+
+    public void register(CommandRegistry registry) {
+        registry.register("send_message", SendMessageRequest.class, ChatCommands::conversation, this::sendMessage);
+        registry.register("fetch_history", FetchHistoryRequest.class, this::fetchHistory);
+        registry.register("ack_messages", AckMessagesRequest.class, this::ackMessages);
+    }
+
+    // Messages to the same conversation are saved and delivered in the order they were sent
+    private static String conversation(SendMessageRequest p) {
+        return p.receiverId() != null ? "user:" + p.receiverId() : "group:" + p.groupId();
+    }
+
+    private JsonMessage sendMessage(SendMessageRequest p, ClientHandler sender) throws SQLException {
+        String content = p.content();
+        int senderId = sender.getSession().getUserId();
+        SentMessage sent = null;
+
+        if (p.clientMsgId() != null && p.clientMsgId().length() > MAX_CLIENT_MSG_ID) {
+            return new JsonMessage("send_message_response", Map.of(
+                    "status", "error",
+                    "message", "client_msg_id is longer than " + MAX_CLIENT_MSG_ID + " characters"
+            ));
+        }
+
+        if (p.receiverId() != null) {
+            int receiverId = p.receiverId();
+
+            sent = chatService.savePrivateMessage(senderId, receiverId, content, p.clientMsgId());
+            // A retry: everybody got the message the first time
+            if (sent.duplicate()) return sendResult(sent, p.clientMsgId());
+            long messageId = sent.id();
+
+            UserProfile senderUser = userService.getProfile(senderId);
+
+            Map<String, Object> enrichedPayload = Map.of(
+                    "chat_type", "private",
+                    "id", messageId,
+                    "sender_id", senderId,
+                    "sender_username", senderUser.username(),
+                    "avatar_url", senderUser.avatarUrl() != null ? senderUser.avatarUrl() : "",
+                    "receiver_id", receiverId,
+                    "content", content
+            );
+
+            String outgoing = gson.toJson(new JsonMessage("send_message", enrichedPayload));
+
+            // Send to receiver, and echo back to sender (recommended for UI consistency)
+            OutboundFrame frame = OutboundFrame.json(outgoing);
+            ClientHandler.deliver(new int[]{senderId}, frame);
+            if (receiverId != senderId) {
+                deliverOrQueue("private", messageId, new int[]{receiverId}, frame);
+            }
+        }
+
+        if (p.groupId() != null) {
+            int groupId = p.groupId();
+
+            if (!chatService.isUserInGroup(groupId, senderId)) {
+                return new JsonMessage("send_message_response", Map.of(
+                        "status", "error",
+                        "message", "You are not a member of this group"
+                ));
+            }
+
+            sent = chatService.saveGroupMessage(senderId, groupId, content, p.clientMsgId());
+            if (sent.duplicate()) return sendResult(sent, p.clientMsgId());
+            long messageId = sent.id();
+
+            int[] members = chatService.getGroupMembers(groupId);
+            UserProfile senderUser = userService.getProfile(senderId);
+
+            Map<String, Object> enrichedPayload = Map.of(
+                    "chat_type", "group",
+                    "id", messageId,
+                    "sender_id", senderId,
+                    "sender_username", senderUser.username(),
+                    "avatar_url", senderUser.avatarUrl() != null ? senderUser.avatarUrl() : "",
+                    "group_id", groupId,
+                    "content", content
+            );
+
+            // Serialized and encoded once for the whole group
+            String outgoing = gson.toJson(new JsonMessage("send_message", enrichedPayload));
+
+            OutboundFrame frame = OutboundFrame.json(outgoing);
+            ClientHandler.deliver(new int[]{senderId}, frame);
+            deliverOrQueue("group", messageId, without(members, senderId), frame);
+        }
+
+        // Clients that don't name their messages get no response, as before
+        return sent != null && p.clientMsgId() != null ? sendResult(sent, p.clientMsgId()) : null;
+    }
+
+    private static JsonMessage sendResult(SentMessage sent, String clientMsgId) {
+        return new JsonMessage("send_message_response", Map.of(
+                "status", "ok",
+                "id", sent.id(),
+                "client_msg_id", clientMsgId,
+                "duplicate", sent.duplicate()
+        ));
+    }
+
+    /**
+     * Queues the message for recipients the push didn't reach. Someone who logs in between the push
+     * and the insert would miss both, so anyone online by now gets the push again; clients drop
+     * messages whose id they already have.
+     */
+    private void deliverOrQueue(String chatType, long messageId, int[] userIds, OutboundFrame frame)
+            throws SQLException {
+        int[] missed = ClientHandler.deliver(userIds, frame);
+        if (missed.length == 0) return;
+        chatService.recordUndelivered(chatType, messageId, missed);
+        ClientHandler.deliver(missed, frame);
+    }
+
+    // ids is sorted
+    private static int[] without(int[] ids, int id) {
+        int at = Arrays.binarySearch(ids, id);
+        if (at < 0) return ids;
+        int[] rest = new int[ids.length - 1];
+        System.arraycopy(ids, 0, rest, 0, at);
+        System.arraycopy(ids, at + 1, rest, at, rest.length - at);
+        return rest;
+    }
+
+    private JsonMessage ackMessages(AckMessagesRequest p, ClientHandler sender) throws SQLException {
+        int removed = chatService.acknowledgeMessages(
+                sender.getSession().getUserId(), p.messageIds(), p.groupMessageIds());
+        return new JsonMessage("ack_messages_response", Map.of("status", "ok", "removed", removed));
+    }
+
+    // Rows are streamed from the database onto the connection, see StreamingPayload
+    private JsonMessage fetchHistory(FetchHistoryRequest p, ClientHandler sender) throws SQLException {
+        String type = p.chatType(); // "private" or "group"
+        if ("private".equals(type) && p.userId() == null) {
+            return new JsonMessage("error", "Malformed message: Missing required field user_id");
+        }
+        if ("group".equals(type) && p.groupId() == null) {
+            return new JsonMessage("error", "Malformed message: Missing required field group_id");
+        }
+
+        // Opening a chat at its newest messages counts as reading it
+        if (p.beforeId() == null && p.afterId() == null) {
+            int userId = sender.getSession().getUserId();
+            if ("private".equals(type)) chatService.markPrivateRead(userId, p.userId());
+            if ("group".equals(type)) chatService.markGroupRead(userId, p.groupId());
+        }
+
+        if (p.paged()) {
+            return fetchHistoryPage(p, sender);
+        }
+
+        if ("private".equals(type)) {
+            return new JsonMessage("fetch_history_response", Map.of(
+                    "status", "ok",
+                    "chat_type", "private",
+                    "messages", chatService.fetchPrivateHistory(sender.getSession().getUserId(), p.userId())
+            ));
+        }
+
+        if ("group".equals(type)) {
+            return new JsonMessage("fetch_history_response", Map.of(
+                    "status", "ok",
+                    "chat_type", "group",
+                    "messages", chatService.fetchGroupHistory(p.groupId())
+            ));
+        }
+
+        return new JsonMessage("error", "Unknown chat type: " + type);
+    }
+
+    private JsonMessage fetchHistoryPage(FetchHistoryRequest p, ClientHandler sender) throws SQLException {
+        String type = p.chatType();
+        if (p.beforeId() != null && p.afterId() != null) {
+            return new JsonMessage("error", "Use either before_id or after_id, not both");
+        }
+        int limit = p.limit() == null ? DEFAULT_HISTORY_PAGE : Math.max(1, Math.min(p.limit(), MAX_HISTORY_PAGE));
+
+        HistoryPage page;
+        if ("private".equals(type)) {
+            page = chatService.fetchPrivateHistoryPage(
+                    sender.getSession().getUserId(), p.userId(), p.beforeId(), p.afterId(), limit);
+        } else if ("group".equals(type)) {
+            page = chatService.fetchGroupHistoryPage(p.groupId(), p.beforeId(), p.afterId(), limit);
+        } else {
+            return new JsonMessage("error", "Unknown chat type: " + type);
+        }
+
+        // next_cursor is left out on the last page
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("status", "ok");
+        payload.put("chat_type", type);
+        payload.put("messages", page.messages());
+        payload.put("next_cursor", page.nextCursor());
+        return new JsonMessage("fetch_history_response", payload);
+    }
+}
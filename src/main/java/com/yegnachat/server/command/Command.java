@@ -0,0 +1,89 @@
+package com.yegnachat.server.command;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.yegnachat.server.ClientHandler;
+import com.yegnachat.server.protocol.JsonMessage;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.RecordComponent;
+import java.util.List;
+
+/**
+ * A registered message type: its payload class, the adapter that decodes it, whether a session
+ * is required, how it is ordered against other requests and the handler. Commands without a
+ * payload register {@code Void.class}. Payload fields marked {@link Required} are checked as the
+ * payload is read.
+ */
+public record Command<P>(
+        String type,
+        Class<P> payloadType,
+        TypeAdapter<P> adapter,
+        boolean requiresAuth,
+        Ordering<P> ordering,
+        CommandHandler<P> handler,
+        List<RecordComponent> required
+) {
+
+    P read(JsonReader in) throws IOException {
+        if (payloadType == Void.class) {
+            in.skipValue();
+            return null;
+        }
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return empty();
+        }
+        return checked(adapter.read(in));
+    }
+
+    P read(JsonElement payload) {
+        if (payloadType == Void.class) return null;
+        if (payload == null || payload.isJsonNull()) return empty();
+        return checked(adapter.fromJsonTree(payload));
+    }
+
+    // A missing payload decodes like {} so handlers never see a null payload object
+    P empty() {
+        if (payloadType == Void.class) return null;
+        return checked(adapter.fromJsonTree(new JsonObject()));
+    }
+
+    private P checked(P payload) {
+        for (RecordComponent component : required) {
+            Object value;
+            try {
+                value = component.getAccessor().invoke(payload);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+            if (value == null) {
+                throw new JsonParseException("Missing required field "
+                        + FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES.translateName(field(component)));
+            }
+        }
+        return payload;
+    }
+
+    private Field field(RecordComponent component) {
+        try {
+            return payloadType.getDeclaredField(component.getName());
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    String orderingKey(Object payload) {
+        return ordering.key(payloadType.cast(payload));
+    }
+
+    JsonMessage execute(Object payload, ClientHandler sender) throws Exception {
+        return handler.handle(payloadType.cast(payload), sender);
+    }
+}
@@ -0,0 +1,13 @@
+package com.yegnachat.server.command;
+
+import com.yegnachat.server.ClientHandler;
+import com.yegnachat.server.protocol.JsonMessage;
+
+/**
+ * Handles one message type. The payload arrives already decoded into its typed class.
+ * Returning null sends no reply.
+ */
+@FunctionalInterface
+public interface CommandHandler<P> {
+    JsonMessage handle(P payload, ClientHandler sender) throws Exception;
+}
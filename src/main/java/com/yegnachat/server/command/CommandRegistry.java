@@ -0,0 +1,121 @@
+package com.yegnachat.server.command;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.RecordComponent;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Message type to command lookup. Payload classes use camelCase fields, which map to the
+ * snake_case keys of the wire protocol. A payload missing a {@link Required} field fails to decode
+ * like any other malformed one.
+ */
+public class CommandRegistry {
+
+    private final Gson gson = new GsonBuilder()
+            .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+            .create();
+
+    private final Map<String, Command<?>> commands = new HashMap<>();
+
+    // Requires a logged in session
+    public <P> void register(String type, Class<P> payloadType, CommandHandler<P> handler) {
+        add(type, payloadType, true, Ordering.concurrent(), handler);
+    }
+
+    public <P> void register(String type, Class<P> payloadType, Ordering<P> ordering, CommandHandler<P> handler) {
+        add(type, payloadType, true, ordering, handler);
+    }
+
+    // Allowed before login
+    public <P> void registerPublic(String type, Class<P> payloadType, CommandHandler<P> handler) {
+        add(type, payloadType, false, Ordering.concurrent(), handler);
+    }
+
+    public <P> void registerPublic(String type, Class<P> payloadType, Ordering<P> ordering,
+                                   CommandHandler<P> handler) {
+        add(type, payloadType, false, ordering, handler);
+    }
+
+    private <P> void add(String type, Class<P> payloadType, boolean requiresAuth, Ordering<P> ordering,
+                         CommandHandler<P> handler) {
+        Command<P> command = new Command<>(type, payloadType,
+                payloadType == Void.class ? null : gson.getAdapter(payloadType), requiresAuth, ordering, handler,
+                required(payloadType));
+        if (commands.putIfAbsent(type, command) != null) {
+            throw new IllegalStateException("Duplicate command: " + type);
+        }
+    }
+
+    private static List<RecordComponent> required(Class<?> payloadType) {
+        if (!payloadType.isRecord()) return List.of();
+        return Arrays.stream(payloadType.getRecordComponents())
+                .filter(component -> component.isAnnotationPresent(Required.class))
+                .toList();
+    }
+
+    public Command<?> get(String type) {
+        return commands.get(type);
+    }
+
+    /**
+     * Decodes an envelope straight into the command's payload class. When "payload" comes before
+     * "type" it has to be buffered as a tree first; otherwise no intermediate tree is built.
+     */
+    public CommandRequest decode(String json) throws IOException {
+        JsonReader in = new JsonReader(new StringReader(json));
+        in.setLenient(true);
+
+        JsonElement requestId = null;
+        String type = null;
+        Command<?> command = null;
+        Object payload = null;
+        boolean payloadSeen = false;
+        JsonElement early = null;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (name.equals("type") && in.peek() == JsonToken.STRING) {
+                type = in.nextString();
+                command = commands.get(type);
+            } else if (name.equals("request_id")) {
+                // Echoed back untouched, only strings and numbers make sense as ids
+                JsonElement id = JsonParser.parseReader(in);
+                requestId = id.isJsonPrimitive() ? id : null;
+            } else if (name.equals("payload")) {
+                payloadSeen = true;
+                if (type == null) {
+                    early = JsonParser.parseReader(in);
+                } else if (command == null) {
+                    in.skipValue();
+                } else {
+                    payload = command.read(in);
+                }
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+
+        if (command != null) {
+            if (early != null) {
+                payload = command.read(early);
+            } else if (!payloadSeen) {
+                payload = command.empty();
+            }
+        }
+        return new CommandRequest(type, requestId, command, payload);
+    }
+}
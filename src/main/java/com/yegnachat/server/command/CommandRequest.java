@@ -0,0 +1,21 @@
+package com.yegnachat.server.command;
+
+import com.google.gson.JsonElement;
+import com.yegnachat.server.ClientHandler;
+import com.yegnachat.server.protocol.JsonMessage;
+
+/**
+ * One decoded inbound frame. {@code command} is null when the type is not registered and
+ * {@code requestId} is null when the client did not send one.
+ */
+public record CommandRequest(String type, JsonElement requestId, Command<?> command, Object payload) {
+
+    // See Ordering. Unknown types run concurrently, they only produce an error
+    public String orderingKey() {
+        return command != null ? command.orderingKey(payload) : null;
+    }
+
+    public JsonMessage execute(ClientHandler sender) throws Exception {
+        return command.execute(payload, sender);
+    }
+}
@@ -0,0 +1,247 @@
+package com.yegnachat.server.command;
+
+import com.yegnachat.server.ClientHandler;
+import com.yegnachat.server.feed.CommentPage;
+import com.yegnachat.server.feed.FeedPage;
+import com.yegnachat.server.feed.FeedService;
+import com.yegnachat.server.image.ImageUploadService;
+import com.yegnachat.server.protocol.JsonMessage;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Posts, likes and comments. Listing posts and comments works without a session.
+ */
+public class FeedCommands {
+
+    record CreatePostRequest(String content, boolean hasImage, long imageSize, String mime) {}
+
+    // Pages by cursor unless an offset is given, which older clients still send
+    record ListPostsRequest(Integer limit, Integer offset, String cursor) {}
+
+    record HomeFeedRequest(Integer limit, String cursor) {}
+
+    record TrendingRequest(Integer limit) {}
+
+    record PostIdRequest(@Required Long postId) {}
+
+    record PostIdsRequest(List<Long> postIds) {}
+
+    record CommentRequest(@Required Long postId, String content) {}
+
+    // Pages when limit or cursor is given, otherwise all comments are returned as before
+    record ListCommentsRequest(@Required Long postId, Integer limit, String cursor) {}
+
+    private static final long MAX_IMAGE_SIZE = 10_000_000; // 10MB cap
+
+    private static final int DEFAULT_FEED_PAGE = 20;
+    private static final int MAX_FEED_PAGE = 100;
+
+    private static final int DEFAULT_COMMENT_PAGE = 20;
+    private static final int MAX_COMMENT_PAGE = 100;
+
+    private final FeedService feedService;
+
+    public FeedCommands(FeedService feedService) {
+        this.feedService = feedService;
+    }
+
+    public void register(CommandRegistry registry) {
+        // The image bytes follow the request on the connection, so nothing else may be read meanwhile
+        registry.register("create_post", CreatePostRequest.class,
+                p -> p.hasImage() ? Ordering.EXCLUSIVE : null, this::createPost);
+        registry.registerPublic("list_feed_posts", ListPostsRequest.class, this::listFeedPosts);
+        registry.register("list_home_feed", HomeFeedRequest.class, this::listHomeFeed);
+        registry.registerPublic("list_trending_posts", TrendingRequest.class, this::listTrendingPosts);
+        registry.registerPublic("get_posts", PostIdsRequest.class, this::getPosts);
+        registry.register("like_post", PostIdRequest.class, this::likePost);
+        registry.register("unlike_post", PostIdRequest.class, this::unlikePost);
+        registry.register("add_comment", CommentRequest.class, this::addComment);
+        registry.registerPublic("list_comments", ListCommentsRequest.class, this::listComments);
+    }
+
+    private JsonMessage createPost(CreatePostRequest p, ClientHandler sender) throws Exception {
+        int userId = sender.getSession().getUserId();
+        String content = p.content() != null ? p.content().trim() : "";
+
+        if (content.isEmpty() && !p.hasImage()) {
+            return postError("Post cannot be empty");
+        }
+
+        // Create post WITHOUT image
+        long postId = feedService.createPost(userId, content, null);
+
+        // Receive binary image (if present)
+        if (p.hasImage()) {
+            String mime = p.mime() != null ? p.mime() : "image/png";
+
+            if (!mime.startsWith("image/")) {
+                return postError("Invalid image type");
+            }
+
+            if (p.imageSize() <= 0 || p.imageSize() > MAX_IMAGE_SIZE) {
+                return postError("Invalid image size");
+            }
+
+            try (InputStream imageStream = sender.readBinary(p.imageSize())) {
+                String imageUrl = ImageUploadService.uploadPostImage(postId, imageStream, mime);
+                feedService.attachPostImage(postId, imageUrl);
+            }
+        }
+
+        return new JsonMessage("create_post_response", Map.of(
+                "status", "ok",
+                "post_id", postId
+        ));
+    }
+
+    private static JsonMessage postError(String message) {
+        return new JsonMessage("create_post_response", Map.of(
+                "status", "error",
+                "message", message
+        ));
+    }
+
+    private JsonMessage listFeedPosts(ListPostsRequest p, ClientHandler sender) throws Exception {
+        if (p.offset() != null) {
+            int limit = p.limit() != null ? p.limit() : DEFAULT_FEED_PAGE;
+            var posts = feedService.listFeedPosts(limit, p.offset());
+
+            return new JsonMessage("list_feed_posts_response", Map.of(
+                    "status", "ok",
+                    "posts", posts
+            ));
+        }
+
+        int limit = p.limit() != null ? Math.max(1, Math.min(p.limit(), MAX_FEED_PAGE)) : DEFAULT_FEED_PAGE;
+        FeedPage page;
+        try {
+            page = feedService.listFeedPage(p.cursor(), limit);
+        } catch (IllegalArgumentException e) {
+            return new JsonMessage("list_feed_posts_response", Map.of(
+                    "status", "error",
+                    "message", e.getMessage()
+            ));
+        }
+
+        // next_cursor is only known once the posts are written, so it must come after them
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("status", "ok");
+        payload.put("posts", page.posts());
+        payload.put("next_cursor", page.nextCursor());
+        return new JsonMessage("list_feed_posts_response", payload);
+    }
+
+    private JsonMessage listHomeFeed(HomeFeedRequest p, ClientHandler sender) throws Exception {
+        int limit = p.limit() != null ? Math.max(1, Math.min(p.limit(), MAX_FEED_PAGE)) : DEFAULT_FEED_PAGE;
+        FeedPage page;
+        try {
+            page = feedService.listHomePage(sender.getSession().getUserId(), p.cursor(), limit);
+        } catch (IllegalArgumentException e) {
+            return new JsonMessage("list_home_feed_response", Map.of(
+                    "status", "error",
+                    "message", e.getMessage()
+            ));
+        }
+
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("status", "ok");
+        payload.put("posts", page.posts());
+        payload.put("next_cursor", page.nextCursor());
+        return new JsonMessage("list_home_feed_response", payload);
+    }
+
+    private JsonMessage listTrendingPosts(TrendingRequest p, ClientHandler sender) throws Exception {
+        int limit = p.limit() != null ? Math.max(1, Math.min(p.limit(), MAX_FEED_PAGE)) : DEFAULT_FEED_PAGE;
+
+        return new JsonMessage("list_trending_posts_response", Map.of(
+                "status", "ok",
+                "posts", feedService.listTrending(limit)
+        ));
+    }
+
+    // Posts by id in one query, e.g. the ones a feed_posts push names
+    private JsonMessage getPosts(PostIdsRequest p, ClientHandler sender) throws Exception {
+        long[] ids = p.postIds() != null
+                ? p.postIds().stream().mapToLong(Long::longValue).distinct().toArray()
+                : new long[0];
+        if (ids.length > MAX_FEED_PAGE) {
+            return new JsonMessage("get_posts_response", Map.of(
+                    "status", "error",
+                    "message", "At most " + MAX_FEED_PAGE + " post ids per request"
+            ));
+        }
+
+        return new JsonMessage("get_posts_response", Map.of(
+                "status", "ok",
+                "posts", feedService.getPosts(ids)
+        ));
+    }
+
+    private JsonMessage likePost(PostIdRequest p, ClientHandler sender) throws Exception {
+        feedService.likePost(sender.getSession().getUserId(), p.postId());
+
+        return new JsonMessage("like_post_response", Map.of(
+                "status", "ok",
+                "post_id", p.postId()
+        ));
+    }
+
+    private JsonMessage unlikePost(PostIdRequest p, ClientHandler sender) throws Exception {
+        feedService.unlikePost(sender.getSession().getUserId(), p.postId());
+
+        return new JsonMessage("unlike_post_response", Map.of(
+                "status", "ok",
+                "post_id", p.postId()
+        ));
+    }
+
+    private JsonMessage addComment(CommentRequest p, ClientHandler sender) throws Exception {
+        long commentId = feedService.addComment(sender.getSession().getUserId(), p.postId(), p.content());
+
+        return new JsonMessage("add_comment_response", Map.of(
+                "status", "ok",
+                "comment_id", commentId,
+                "post_id", p.postId()
+        ));
+    }
+
+    private JsonMessage listComments(ListCommentsRequest p, ClientHandler sender) throws Exception {
+        if (p.limit() != null || p.cursor() != null) {
+            return listCommentPage(p);
+        }
+
+        var comments = feedService.listComments(p.postId());
+
+        return new JsonMessage("list_comments_response", Map.of(
+                "status", "ok",
+                "post_id", p.postId(),
+                "comments", comments
+        ));
+    }
+
+    private JsonMessage listCommentPage(ListCommentsRequest p) throws Exception {
+        int limit = p.limit() != null ? Math.max(1, Math.min(p.limit(), MAX_COMMENT_PAGE)) : DEFAULT_COMMENT_PAGE;
+        CommentPage page;
+        try {
+            page = feedService.listCommentPage(p.postId(), p.cursor(), limit);
+        } catch (IllegalArgumentException e) {
+            return new JsonMessage("list_comments_response", Map.of(
+                    "status", "error",
+                    "message", e.getMessage()
+            ));
+        }
+
+        // next_cursor is left out on the last page
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("status", "ok");
+        payload.put("post_id", p.postId());
+        payload.put("comments", page.comments());
+        payload.put("next_cursor", page.nextCursor());
+        return new JsonMessage("list_comments_response", payload);
+    }
+}
@@ -0,0 +1,320 @@
+package com.yegnachat.server.command;
+
+import com.yegnachat.server.ClientHandler;
+import com.yegnachat.server.chat.ChatService;
+import com.yegnachat.server.protocol.JsonMessage;
+import com.yegnachat.server.user.User;
+import com.yegnachat.server.user.UserService;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Group creation, membership and roles.
+ */
+public class GroupCommands {
+
+    record GroupIdRequest(@Required Integer groupId) {}
+
+    record GroupIdsRequest(List<Integer> groupIds) {}
+
+    record CreateGroupRequest(String name, String about, String avatarUrl, List<Integer> userIds) {}
+
+    record AddUsersRequest(@Required Integer groupId, List<Integer> userIds) {}
+
+    record AddMemberRequest(@Required Integer groupId, String username) {}
+
+    record GroupUserRequest(@Required Integer groupId, @Required Integer userId) {}
+
+    record RoleChangeRequest(@Required Integer groupId, @Required Integer userId, String newRole) {}
+
+    record UpdateGroupRequest(@Required Integer groupId, String name, String about, String avatarUrl) {}
+
+    // Ids per get_groups_info
+    private static final int MAX_GROUPS = 100;
+
+    private final ChatService chatService;
+    private final UserService userService;
+
+    public GroupCommands(ChatService chatService, UserService userService) {
+        this.chatService = chatService;
+        this.userService = userService;
+    }
+
+    public void register(CommandRegistry registry) {
+        registry.register("list_group_members", GroupIdRequest.class, this::listGroupMembers);
+        registry.register("create_group", CreateGroupRequest.class, this::createGroup);
+        registry.register("add_user_to_group", AddUsersRequest.class, this::addUsersToGroup);
+        registry.register("add_group_member", AddMemberRequest.class, this::addGroupMember);
+        registry.register("leave_group", GroupIdRequest.class, this::leaveGroup);
+        registry.register("list_groups_for_user", Void.class, this::listGroupsForUser);
+        registry.register("remove_user_from_group", GroupUserRequest.class, this::removeUserFromGroup);
+        registry.register("promote_demote_user", RoleChangeRequest.class, this::promoteDemoteUser);
+        registry.register("update_group_info", UpdateGroupRequest.class, this::updateGroupInfo);
+        registry.register("list_group_admins", GroupIdRequest.class, this::listGroupAdmins);
+        registry.register("get_group_info", GroupIdRequest.class, this::getGroupInfo);
+        registry.register("get_groups_info", GroupIdsRequest.class, this::getGroupsInfo);
+    }
+
+    private JsonMessage listGroupMembers(GroupIdRequest p, ClientHandler sender) throws SQLException {
+        return new JsonMessage("list_group_members_response", Map.of(
+                "status", "ok",
+                "group_id", p.groupId(),
+                "members", chatService.getGroupMembersDetailed(p.groupId())
+        ));
+    }
+
+    private JsonMessage createGroup(CreateGroupRequest p, ClientHandler sender) {
+        String about = p.about() != null ? p.about() : "";
+        String avatarUrl = p.avatarUrl() != null ? p.avatarUrl() : "";
+        List<Integer> userIds = p.userIds() != null ? p.userIds() : List.of();
+
+        int creatorId = sender.getSession().getUserId();
+
+        try {
+            int groupId = chatService.createGroup(p.name(), about, avatarUrl, creatorId);
+
+            // The group is new, only the creator is in it so far
+            List<Integer> members = userIds.stream().filter(id -> id != creatorId).distinct().toList();
+            if (!members.isEmpty()) {
+                chatService.addUsersToGroup(groupId, members);
+            }
+
+            return new JsonMessage("create_group_response", Map.of(
+                    "status", "ok",
+                    "group_id", groupId
+            ));
+        } catch (Exception e) {
+            e.printStackTrace();
+            return new JsonMessage("create_group_response", Map.of(
+                    "status", "error",
+                    "message", e.getMessage()
+            ));
+        }
+    }
+
+    private JsonMessage addUsersToGroup(AddUsersRequest p, ClientHandler sender) throws SQLException {
+        int groupId = p.groupId();
+        int senderId = sender.getSession().getUserId();
+
+        if (!chatService.isUserInGroup(groupId, senderId)) {
+            return new JsonMessage("add_user_to_group_response", Map.of(
+                    "status", "error",
+                    "message", "You are not a member of this group"
+            ));
+        }
+
+        List<Integer> userIds = p.userIds() != null
+                ? p.userIds().stream().distinct().toList() // prevent duplicates in request
+                : List.of();
+
+        try {
+            List<Integer> usersToAdd = new ArrayList<>();
+            for (int userId : userIds) {
+                if (!chatService.isUserInGroup(groupId, userId)) {
+                    usersToAdd.add(userId);
+                }
+            }
+
+            if (usersToAdd.isEmpty()) {
+                return new JsonMessage("add_user_to_group_response", Map.of(
+                        "status", "ok",
+                        "group_id", groupId,
+                        "message", "No new users to add"
+                ));
+            }
+
+            chatService.addUsersToGroup(groupId, usersToAdd);
+
+            return new JsonMessage("add_user_to_group_response", Map.of(
+                    "status", "ok",
+                    "group_id", groupId,
+                    "added_count", usersToAdd.size()
+            ));
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return new JsonMessage("add_user_to_group_response", Map.of(
+                    "status", "error",
+                    "message", "Database error: " + e.getMessage()
+            ));
+        }
+    }
+
+    private JsonMessage addGroupMember(AddMemberRequest p, ClientHandler sender) {
+        int groupId = p.groupId();
+        int senderId = sender.getSession().getUserId();
+
+        try {
+            // Check if sender is in the group
+            if (!chatService.isUserInGroup(groupId, senderId)) {
+                return memberError("You are not a member of this group");
+            }
+
+            // Lookup user by username
+            User user = userService.getByUsername(p.username());
+            if (user == null) {
+                return memberError("User not found");
+            }
+
+            // Check if user is already in group
+            if (chatService.isUserInGroup(groupId, user.getId())) {
+                return memberError("User is already in the group");
+            }
+
+            // Add user to group as "member"
+            chatService.addUserToGroup(groupId, user.getId(), "member");
+
+            return new JsonMessage("add_group_member_response", Map.of(
+                    "status", "ok",
+                    "group_id", groupId,
+                    "added_username", p.username()
+            ));
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return memberError("Database error: " + e.getMessage());
+        }
+    }
+
+    private static JsonMessage memberError(String message) {
+        return new JsonMessage("add_group_member_response", Map.of(
+                "status", "error",
+                "message", message
+        ));
+    }
+
+    private JsonMessage leaveGroup(GroupIdRequest p, ClientHandler sender) throws SQLException {
+        int userId = sender.getSession().getUserId();
+
+        if (!chatService.isUserInGroup(p.groupId(), userId)) {
+            return new JsonMessage("leave_group_response", Map.of(
+                    "status", "error",
+                    "message", "You are not a member of this group"
+            ));
+        }
+
+        boolean left = chatService.leaveGroup(p.groupId(), userId);
+
+        return new JsonMessage("leave_group_response", Map.of(
+                "status", "ok",
+                "group_id", p.groupId(),
+                "left", left
+        ));
+    }
+
+    private JsonMessage listGroupsForUser(Void p, ClientHandler sender) throws SQLException {
+        List<Map<String, Object>> groups = chatService.listGroupsForUser(sender.getSession().getUserId());
+
+        return new JsonMessage("list_groups_for_user_response", Map.of(
+                "status", "ok",
+                "groups", groups
+        ));
+    }
+
+    private JsonMessage removeUserFromGroup(GroupUserRequest p, ClientHandler sender) throws SQLException {
+        if (!chatService.isAdminInGroup(p.groupId(), sender.getSession().getUserId())) {
+            return new JsonMessage("remove_user_from_group_response", Map.of(
+                    "status", "error",
+                    "message", "You are not an admin of this group"
+            ));
+        }
+
+        boolean removed = chatService.removeUserFromGroup(p.groupId(), p.userId());
+
+        return new JsonMessage("remove_user_from_group_response", Map.of(
+                "status", removed ? "ok" : "error",
+                "removed_user_id", p.userId()
+        ));
+    }
+
+    private JsonMessage promoteDemoteUser(RoleChangeRequest p, ClientHandler sender) throws SQLException {
+        String newRole = p.newRole().toLowerCase();
+
+        if (!chatService.isOwnerInGroup(p.groupId(), sender.getSession().getUserId())) {
+            return new JsonMessage("promote_demote_user_response", Map.of(
+                    "status", "error",
+                    "message", "Only the owner can change roles"
+            ));
+        }
+
+        boolean updated = chatService.updateUserRole(p.groupId(), p.userId(), newRole);
+
+        return new JsonMessage("promote_demote_user_response", Map.of(
+                "status", updated ? "ok" : "error",
+                "user_id", p.userId(),
+                "new_role", newRole
+        ));
+    }
+
+    private JsonMessage updateGroupInfo(UpdateGroupRequest p, ClientHandler sender) throws SQLException {
+        if (!chatService.isAdminInGroup(p.groupId(), sender.getSession().getUserId())) {
+            return new JsonMessage("update_group_info_response", Map.of(
+                    "status", "error",
+                    "message", "Only admins can update group info"
+            ));
+        }
+
+        boolean updated = chatService.updateGroupInfo(p.groupId(), p.name(), p.about(), p.avatarUrl());
+
+        return new JsonMessage("update_group_info_response", Map.of(
+                "status", updated ? "ok" : "error",
+                "group_id", p.groupId()
+        ));
+    }
+
+    private JsonMessage listGroupAdmins(GroupIdRequest p, ClientHandler sender) throws SQLException {
+        List<Map<String, Object>> admins = chatService.listGroupAdmins(p.groupId());
+
+        return new JsonMessage("list_group_admins_response", Map.of(
+                "status", "ok",
+                "group_id", p.groupId(),
+                "admins", admins
+        ));
+    }
+
+    private JsonMessage getGroupInfo(GroupIdRequest p, ClientHandler sender) {
+        try {
+            Map<String, Object> groupData = chatService.getGroupInfo(p.groupId());
+
+            if (groupData == null) {
+                return new JsonMessage("get_group_info_response", Map.of(
+                        "status", "error",
+                        "message", "Group not found"
+                ));
+            }
+            return new JsonMessage("get_group_info_response", Map.of(
+                    "status", "ok",
+                    "group", groupData
+            ));
+        } catch (SQLException e) {
+            return new JsonMessage("get_group_info_response", Map.of(
+                    "status", "error",
+                    "message", "Database error: " + e.getMessage()
+            ));
+        }
+    }
+
+    // Many groups in one query, in the order asked for; groups that don't exist are left out
+    private JsonMessage getGroupsInfo(GroupIdsRequest p, ClientHandler sender) throws SQLException {
+        List<Integer> ids = p.groupIds() != null ? p.groupIds().stream().distinct().toList() : List.of();
+        if (ids.size() > MAX_GROUPS) {
+            return new JsonMessage("get_groups_info_response", Map.of(
+                    "status", "error",
+                    "message", "At most " + MAX_GROUPS + " group ids per request"
+            ));
+        }
+
+        Map<Integer, Map<String, Object>> found = chatService.getGroupsInfo(ids);
+        List<Map<String, Object>> groups = ids.stream()
+                .map(found::get)
+                .filter(Objects::nonNull)
+                .toList();
+
+        return new JsonMessage("get_groups_info_response", Map.of(
+                "status", "ok",
+                "groups", groups
+        ));
+    }
+}
@@ -0,0 +1,24 @@
+package com.yegnachat.server.command;
+
+/**
+ * How a command is scheduled against other requests from the same connection.
+ * Requests whose keys are equal run one after another in arrival order; a null key runs
+ * alongside anything else.
+ */
+@FunctionalInterface
+public interface Ordering<P> {
+
+    // Compared by identity, never equal to a key a command builds itself
+    String EXCLUSIVE = new String("exclusive");
+
+    String key(P payload);
+
+    static <P> Ordering<P> concurrent() {
+        return payload -> null;
+    }
+
+    // Waits for everything in flight and holds back later requests until it is done
+    static <P> Ordering<P> exclusive() {
+        return payload -> EXCLUSIVE;
+    }
+}
@@ -0,0 +1,15 @@
+package com.yegnachat.server.command;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * A payload field the client has to send. Use a boxed type so a missing field decodes as null;
+ * such requests are answered as malformed before they are ordered or handled.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.RECORD_COMPONENT)
+@interface Required {
+}
@@ -0,0 +1,230 @@
+package com.yegnachat.server.command;
+
+import com.yegnachat.server.ClientHandler;
+import com.yegnachat.server.chat.ChatService;
+import com.yegnachat.server.feed.FeedService;
+import com.yegnachat.server.protocol.JsonMessage;
+import com.yegnachat.server.user.User;
+import com.yegnachat.server.user.UserProfile;
+import com.yegnachat.server.user.UserService;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Profiles, settings, search and follows.
+ */
+public class UserCommands {
+
+    record UserIdRequest(@Required Integer userId) {}
+
+    record UserIdsRequest(List<Integer> userIds) {}
+
+    record LanguageRequest(String languageCode) {}
+
+    record PasswordRequest(String oldPassword, String newPassword) {}
+
+    record BioRequest(String bio) {}
+
+    record SearchRequest(String query) {}
+
+    // Ids per get_user_profiles
+    private static final int MAX_PROFILES = 100;
+
+    private final UserService userService;
+    private final ChatService chatService;
+    private final FeedService feedService;
+
+    public UserCommands(UserService userService, ChatService chatService, FeedService feedService) {
+        this.userService = userService;
+        this.chatService = chatService;
+        this.feedService = feedService;
+    }
+
+    public void register(CommandRegistry registry) {
+        registry.register("get_user", Void.class, this::getUser);
+        registry.register("get_user_profile", UserIdRequest.class, this::getUserProfile);
+        registry.register("get_user_profiles", UserIdsRequest.class, this::getUserProfiles);
+        registry.register("list_users", Void.class, this::listUsers);
+        registry.register("set_preferred_language", LanguageRequest.class, this::setPreferredLanguage);
+        registry.register("get_preferred_language", Void.class, this::getPreferredLanguage);
+        registry.register("set_password", PasswordRequest.class, this::setPassword);
+        registry.register("set_bio", BioRequest.class, this::setBio);
+        registry.register("search_users", SearchRequest.class, this::searchUsers);
+        registry.register("follow_user", UserIdRequest.class, this::followUser);
+        registry.register("unfollow_user", UserIdRequest.class, this::unfollowUser);
+    }
+
+    // to get yourself
+    private JsonMessage getUser(Void p, ClientHandler sender) throws SQLException {
+        return profileResponse("get_user_response", userService.getProfile(sender.getSession().getUserId()));
+    }
+
+    // to get other people using ID
+    private JsonMessage getUserProfile(UserIdRequest p, ClientHandler sender) throws SQLException {
+        return profileResponse("get_user_profile_response", userService.getProfile(p.userId()));
+    }
+
+    private static JsonMessage profileResponse(String type, UserProfile user) {
+        if (user == null) {
+            return new JsonMessage(type, Map.of("status", "error", "message", "User not found"));
+        }
+
+        return new JsonMessage(type, Map.of(
+                "status", "ok",
+                "user", profileJson(user)
+        ));
+    }
+
+    // Many profiles in one round trip, from the profile cache and one query for the rest
+    private JsonMessage getUserProfiles(UserIdsRequest p, ClientHandler sender) throws SQLException {
+        List<Integer> ids = p.userIds() != null ? p.userIds().stream().distinct().toList() : List.of();
+        if (ids.size() > MAX_PROFILES) {
+            return new JsonMessage("get_user_profiles_response", Map.of(
+                    "status", "error",
+                    "message", "At most " + MAX_PROFILES + " user ids per request"
+            ));
+        }
+
+        // In the order asked for, users that don't exist are left out
+        Map<Integer, UserProfile> found = userService.getProfiles(ids);
+        List<Map<String, Object>> users = ids.stream()
+                .map(found::get)
+                .filter(Objects::nonNull)
+                .map(UserCommands::profileJson)
+                .toList();
+
+        return new JsonMessage("get_user_profiles_response", Map.of(
+                "status", "ok",
+                "users", users
+        ));
+    }
+
+    private static Map<String, Object> profileJson(UserProfile user) {
+        return Map.of(
+                "id", user.id(),
+                "username", user.username(),
+                "avatar_url", user.avatarUrl() != null ? user.avatarUrl() : "",
+                "bio", user.bio() != null ? user.bio() : ""
+        );
+    }
+
+    private JsonMessage listUsers(Void p, ClientHandler sender) {
+        try {
+            int currentUserId = sender.getSession().getUserId();
+
+            // People the user has messaged and their groups, most recent conversation first
+            return new JsonMessage("list_users_response", Map.of(
+                    "status", "ok",
+                    "users", chatService.listPrivateConversations(currentUserId),
+                    "groups", chatService.listGroupConversations(currentUserId)
+            ));
+        } catch (Exception e) {
+            e.printStackTrace();
+            return new JsonMessage("error", "Exception: " + e.getMessage());
+        }
+    }
+
+    private JsonMessage setPreferredLanguage(LanguageRequest p, ClientHandler sender) {
+        String languageCode = p.languageCode(); // e.g., "en", "am", "fr"
+        int userId = sender.getSession().getUserId();
+
+        try {
+            boolean updated = userService.updatePreferredLanguage(userId, languageCode);
+            if (updated) {
+                // Update the session too
+                sender.getSession().setPreferredLanguageCode(languageCode);
+
+                return new JsonMessage("set_preferred_language_response", Map.of(
+                        "status", "ok",
+                        "preferred_language_code", languageCode
+                ));
+            }
+            return new JsonMessage("set_preferred_language_response", Map.of(
+                    "status", "error",
+                    "message", "Failed to update language"
+            ));
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return new JsonMessage("set_preferred_language_response", Map.of(
+                    "status", "error",
+                    "message", "Database error: " + e.getMessage()
+            ));
+        }
+    }
+
+    private JsonMessage getPreferredLanguage(Void p, ClientHandler sender) {
+        // Get the language from the session
+        String languageCode = sender.getSession().getPreferredLanguageCode();
+
+        return new JsonMessage("get_preferred_language_response", Map.of(
+                "status", "ok",
+                "preferred_language_code", languageCode
+        ));
+    }
+
+    private JsonMessage setPassword(PasswordRequest p, ClientHandler sender) throws SQLException {
+        int userId = sender.getSession().getUserId();
+
+        if (userService.changePassword(userId, p.oldPassword(), p.newPassword())) {
+            return new JsonMessage("set_password_response", Map.of("status", "ok"));
+        }
+        return new JsonMessage("set_password_response", Map.of(
+                "status", "error",
+                "message", "Old password incorrect"
+        ));
+    }
+
+    private JsonMessage setBio(BioRequest p, ClientHandler sender) throws SQLException {
+        boolean updated = userService.updateBio(sender.getSession().getUserId(), p.bio());
+
+        return new JsonMessage("set_bio_response", Map.of("status", updated ? "ok" : "error"));
+    }
+
+    private JsonMessage searchUsers(SearchRequest p, ClientHandler sender) throws SQLException {
+        String query = p.query() != null ? p.query().trim() : "";
+
+        if (query.isEmpty()) {
+            return new JsonMessage("search_users_response", Map.of("status", "ok", "users", List.of()));
+        }
+
+        List<User> users = userService.searchUsers(query, sender.getSession().getUserId());
+
+        List<Map<String, Object>> result = users.stream()
+                .map(u -> Map.<String, Object>of(
+                        "id", u.getId(),
+                        "username", u.getUsername(),
+                        "avatar_url", u.getAvatarUrl() != null ? u.getAvatarUrl() : ""
+                ))
+                .toList();
+
+        return new JsonMessage("search_users_response", Map.of(
+                "status", "ok",
+                "users", result
+        ));
+    }
+
+    private JsonMessage followUser(UserIdRequest p, ClientHandler sender) throws SQLException {
+        int userId = sender.getSession().getUserId();
+        boolean ok = userService.followUser(userId, p.userId());
+        if (ok) feedService.followsChanged(userId);
+
+        return new JsonMessage("follow_user_response", Map.of(
+                "status", ok ? "ok" : "error",
+                "user_id", p.userId()
+        ));
+    }
+
+    private JsonMessage unfollowUser(UserIdRequest p, ClientHandler sender) throws SQLException {
+        int userId = sender.getSession().getUserId();
+        boolean ok = userService.unfollowUser(userId, p.userId());
+        if (ok) feedService.followsChanged(userId);
+
+        return new JsonMessage("unfollow_user_response", Map.of(
+                "status", ok ? "ok" : "error",
+                "user_id", p.userId()
+        ));
+    }
+}
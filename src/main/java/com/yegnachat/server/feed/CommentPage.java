@@ -0,0 +1,11 @@
+package com.yegnachat.server.feed;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One page of a post's comments, oldest first. nextCursor is the cursor to pass for the following
+ * page, null when there is nothing more.
+ */
+public record CommentPage(List<Map<String, Object>> comments, String nextCursor) {
+}
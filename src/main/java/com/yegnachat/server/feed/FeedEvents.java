@@ -0,0 +1,204 @@
+package com.yegnachat.server.feed;
+
+import com.google.gson.Gson;
+import com.yegnachat.server.ClientHandler;
+import com.yegnachat.server.DatabaseService;
+import com.yegnachat.server.net.OutboundFrame;
+import com.yegnachat.server.protocol.JsonMessage;
+import com.yegnachat.server.util.Metrics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes feed activity to whoever is online, so clients don't have to poll for it. Events are
+ * collected and sent every interval: new posts go to the author's followers as one feed_posts
+ * frame, and likes and comments go to the post's author as one post_activity frame per post, with
+ * the change since the last push and the current counts. Likes are
+ * counted once LikeBuffer has written them, so taps that changed nothing are never reported.
+ * Best effort: nothing is kept for users who are offline, and a failed push is not retried.
+ */
+public class FeedEvents {
+
+    // Posts looked up per query
+    private static final int LOOKUP_CHUNK = 500;
+
+    private record Posted(int authorId, long postId) {}
+
+    private final DatabaseService db;
+    private final PostCounters counters;
+    private final LikeBuffer likes;
+    private final long intervalMillis;
+    private final Gson gson = new Gson();
+
+    private final Queue<Posted> posted = new ConcurrentLinkedQueue<>();
+    // Changes since the last push. Drained with remove(), so nothing added concurrently is lost
+    private final Map<Long, Integer> likeChanges = new ConcurrentHashMap<>();
+    private final Map<Long, Integer> commentChanges = new ConcurrentHashMap<>();
+
+    private final AtomicLong pushed = new AtomicLong();
+    private final Thread publisher;
+    private volatile boolean closed;
+
+    public FeedEvents(DatabaseService db, PostCounters counters, LikeBuffer likes, long intervalMillis) {
+        this.db = db;
+        this.counters = counters;
+        this.likes = likes;
+        this.intervalMillis = Math.max(10, intervalMillis);
+
+        Metrics.register("feed_events_pushed", pushed::get);
+        likes.addListener(this::liked);
+
+        this.publisher = Thread.ofPlatform().name("feed-events").daemon(true).start(this::run);
+    }
+
+    public void posted(int authorId, long postId) {
+        posted.add(new Posted(authorId, postId));
+    }
+
+    private void liked(long postId, int change) {
+        likeChanges.merge(postId, change, FeedEvents::sum);
+    }
+
+    public void commented(long postId, int change) {
+        commentChanges.merge(postId, change, FeedEvents::sum);
+    }
+
+    private static Integer sum(Integer a, Integer b) {
+        int total = a + b;
+        return total == 0 ? null : total;
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                Thread.sleep(intervalMillis);
+                publishPosts();
+                publishActivity();
+            } catch (InterruptedException e) {
+                break;
+            } catch (SQLException e) {
+                System.err.println("Feed push failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void publishPosts() throws SQLException {
+        Map<Integer, List<Long>> byAuthor = new LinkedHashMap<>();
+        for (Posted p; (p = posted.poll()) != null; ) {
+            byAuthor.computeIfAbsent(p.authorId(), id -> new ArrayList<>()).add(p.postId());
+        }
+
+        for (Map.Entry<Integer, List<Long>> author : byAuthor.entrySet()) {
+            int[] followers = followers(author.getKey());
+            if (followers.length == 0) continue;
+
+            Map<String, Object> payload = new LinkedHashMap<>();
+            payload.put("user_id", author.getKey());
+            payload.put("post_ids", author.getValue());
+            push(followers, new JsonMessage("feed_posts", payload));
+        }
+    }
+
+    private int[] followers(int authorId) throws SQLException {
+        String sql = "SELECT follower_id FROM user_follows WHERE target_id = ?";
+        int[] followers = new int[16];
+        int count = 0;
+        try (Connection conn = db.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, authorId);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                int follower = rs.getInt(1);
+                // Only online followers get anything, no need to keep the rest
+                if (!ClientHandler.isOnline(follower)) continue;
+                if (count == followers.length) followers = Arrays.copyOf(followers, count * 2);
+                followers[count++] = follower;
+            }
+        }
+        return Arrays.copyOf(followers, count);
+    }
+
+    private void publishActivity() throws SQLException {
+        if (likeChanges.isEmpty() && commentChanges.isEmpty()) return;
+
+        Map<Long, int[]> changes = new LinkedHashMap<>();
+        for (Long postId : likeChanges.keySet()) {
+            Integer change = likeChanges.remove(postId);
+            if (change != null) changes.computeIfAbsent(postId, id -> new int[2])[0] = change;
+        }
+        for (Long postId : commentChanges.keySet()) {
+            Integer change = commentChanges.remove(postId);
+            if (change != null) changes.computeIfAbsent(postId, id -> new int[2])[1] = change;
+        }
+
+        List<Long> postIds = new ArrayList<>(changes.keySet());
+        Map<Integer, List<Map<String, Object>>> byAuthor = new LinkedHashMap<>();
+        for (int from = 0; from < postIds.size(); from += LOOKUP_CHUNK) {
+            List<Long> chunk = postIds.subList(from, Math.min(postIds.size(), from + LOOKUP_CHUNK));
+            String sql = "SELECT id, user_id, like_count, comment_count FROM posts WHERE id IN ("
+                    + String.join(",", Collections.nCopies(chunk.size(), "?")) + ")";
+            try (Connection conn = db.getConnection();
+                 PreparedStatement ps = conn.prepareStatement(sql)) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    ps.setLong(i + 1, chunk.get(i));
+                }
+                ResultSet rs = ps.executeQuery();
+                while (rs.next()) {
+                    int authorId = rs.getInt("user_id");
+                    if (!ClientHandler.isOnline(authorId)) continue;
+
+                    long postId = rs.getLong("id");
+                    int[] change = changes.get(postId);
+                    Map<String, Object> post = new LinkedHashMap<>();
+                    post.put("post_id", postId);
+                    post.put("new_likes", change[0]);
+                    post.put("new_comments", change[1]);
+                    post.put("likes", rs.getInt("like_count") + counters.pendingLikes(postId) + likes.pendingLikes(postId));
+                    post.put("comments", rs.getInt("comment_count") + counters.pendingComments(postId));
+                    byAuthor.computeIfAbsent(authorId, id -> new ArrayList<>()).add(post);
+                }
+            }
+        }
+
+        // One frame per post, so a client that falls behind keeps only the latest counts of each
+        for (Map.Entry<Integer, List<Map<String, Object>>> author : byAuthor.entrySet()) {
+            for (Map<String, Object> post : author.getValue()) {
+                push(new int[]{author.getKey()}, "post_activity:" + post.get("post_id"),
+                        new JsonMessage("post_activity", Map.of("posts", List.of(post))));
+            }
+        }
+    }
+
+    private void push(int[] userIds, JsonMessage message) {
+        push(userIds, null, message);
+    }
+
+    private void push(int[] userIds, String key, JsonMessage message) {
+        OutboundFrame frame = OutboundFrame.json(gson.toJson(message));
+        pushed.addAndGet(userIds.length - ClientHandler.deliver(userIds, key, frame).length);
+    }
+
+    public void close() {
+        closed = true;
+        publisher.interrupt();
+        try {
+            publisher.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
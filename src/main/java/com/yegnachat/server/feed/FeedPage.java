@@ -0,0 +1,60 @@
+package com.yegnachat.server.feed;
+
+import com.google.gson.stream.JsonWriter;
+import com.yegnachat.server.protocol.StreamingPayload;
+
+import java.io.IOException;
+
+/**
+ * One page of the feed, newest post first. posts is streamed, and nextCursor is only known once
+ * posts has been written, so it has to come after posts in the response. It writes nothing on the
+ * last page.
+ */
+public record FeedPage(StreamingPayload posts, StreamingPayload nextCursor) {
+
+    // Follows the rows as they are written; the cursor of the last one is kept if another row comes
+    static final class NextCursor implements StreamingPayload {
+
+        private final int limit;
+        private int rows;
+        private String last;
+        private String value;
+
+        NextCursor(int limit) {
+            this.limit = limit;
+        }
+
+        // A cursor known up front, null on the last page
+        static NextCursor of(String value) {
+            NextCursor cursor = new NextCursor(0);
+            cursor.value = value;
+            return cursor;
+        }
+
+        boolean full() {
+            return rows == limit;
+        }
+
+        void wrote(String cursor) {
+            rows++;
+            last = cursor;
+        }
+
+        void more() {
+            value = last;
+        }
+
+        @Override
+        public void writeTo(JsonWriter out) throws IOException {
+            if (value == null) {
+                out.nullValue();
+            } else {
+                out.value(value);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
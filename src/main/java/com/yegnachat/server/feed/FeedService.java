@@ -1,15 +1,64 @@
 package com.yegnachat.server.feed;
 
+import com.google.gson.stream.JsonWriter;
 import com.yegnachat.server.DatabaseService;
+import com.yegnachat.server.protocol.StreamingPayload;
+import com.yegnachat.server.util.ExpiringLruCache;
+import com.yegnachat.server.util.JsonRowStream;
+import com.yegnachat.server.util.Metrics;
+
+import java.io.IOException;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 public class FeedService {
 
+    // Comments kept per post in the first page cache; larger first pages are read from the database
+    private static final int CACHED_COMMENTS = 50;
+
+    // "epochMillis:id" of the last row of a page ordered by (created_at, id)
+    private record Cursor(Timestamp createdAt, long id) {
+
+        static Cursor parse(String cursor) {
+            if (cursor == null) return null;
+            int colon = cursor.indexOf(':');
+            try {
+                return new Cursor(new Timestamp(Long.parseLong(cursor.substring(0, colon))),
+                        Long.parseLong(cursor.substring(colon + 1)));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+        }
+    }
+
+    // The oldest comments of a post, and whether it has more than those
+    private record FirstComments(List<Map<String, Object>> comments, List<String> cursors, boolean more) {}
+
     private final DatabaseService db;
+    private final PostCounters counters;
+    private final LikeBuffer likes;
+    private final HomeTimelines timelines;
+    private final FeedEvents events;
+    private final TrendingPosts trending;
+    private final ExpiringLruCache<Long, FirstComments> firstComments;
 
-    public FeedService(DatabaseService db) {
+    public FeedService(DatabaseService db, PostCounters counters, LikeBuffer likes, HomeTimelines timelines,
+                       FeedEvents events, TrendingPosts trending, int commentCacheSize, int commentCacheTtlSeconds) {
         this.db = db;
+        this.counters = counters;
+        this.likes = likes;
+        this.timelines = timelines;
+        this.events = events;
+        this.trending = trending;
+        this.firstComments = new ExpiringLruCache<>(commentCacheSize, commentCacheTtlSeconds, TimeUnit.SECONDS);
+
+        // Only likes that really changed a stored like of an existing post move it up or down
+        likes.addListener(trending::liked);
+
+        Metrics.register("comment_cache_hits", firstComments::hits);
+        Metrics.register("comment_cache_misses", firstComments::misses);
+        Metrics.register("comment_cache_size", firstComments::size);
     }
 
 
@@ -29,74 +78,237 @@ public class FeedService {
 
             ResultSet rs = ps.getGeneratedKeys();
             rs.next();
-            return rs.getLong(1);
+            long postId = rs.getLong(1);
+            timelines.published(userId, postId);
+            events.posted(userId, postId);
+            trending.posted(postId);
+            return postId;
         }
     }
 
-    public List<Map<String, Object>> listFeedPosts(int limit, int offset) throws SQLException {
+    // Whom the user follows changed
+    public void followsChanged(int userId) {
+        timelines.invalidate(userId);
+    }
+
+    public StreamingPayload listFeedPosts(int limit, int offset) throws SQLException {
         String sql = """
-            SELECT p.id, p.content, p.image_url, p.created_at,
-                   u.id AS user_id, u.username, u.avatar_url,
-                   (SELECT COUNT(*) FROM post_likes pl WHERE pl.post_id = p.id) AS like_count,
-                   (SELECT COUNT(*) FROM post_comments pc WHERE pc.post_id = p.id) AS comment_count
+            SELECT p.id, p.content, p.image_url, p.created_at, p.like_count, p.comment_count,
+                   u.id AS user_id, u.username, u.avatar_url
             FROM posts p
             JOIN users u ON u.id = p.user_id
-            ORDER BY p.created_at DESC
+            ORDER BY p.created_at DESC, p.id DESC
             LIMIT ? OFFSET ?
         """;
 
-        List<Map<String, Object>> posts = new ArrayList<>();
-
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement(sql)) {
-
+        return JsonRowStream.open(db, sql, ps -> {
             ps.setInt(1, limit);
             ps.setInt(2, offset);
+        }, this::writePost);
+    }
 
-            ResultSet rs = ps.executeQuery();
-            while (rs.next()) {
-                posts.add(Map.of(
-                        "post_id", rs.getLong("id"),
-                        "content", rs.getString("content"),
-                        "image_url",   Optional.ofNullable(rs.getString("image_url")).orElse(""),
-                        "created_at", rs.getTimestamp("created_at").toString(),
-                        "user", Map.of(
-                                "id", rs.getInt("user_id"),
-                                "username", rs.getString("username"),
-                                "avatar_url", Optional.ofNullable(rs.getString("avatar_url")).orElse("")
-                        ),
-                        "likes", rs.getInt("like_count"),
-                        "comments", rs.getInt("comment_count")
-                ));
+    /**
+     * Up to limit posts older than the cursor (the newest ones when it is null), found by walking
+     * the (created_at, id) index from the cursor, so a deep page costs the same as the first one
+     * and posts added meanwhile don't shift it.
+     */
+    public FeedPage listFeedPage(String cursor, int limit) throws SQLException {
+        Cursor after = Cursor.parse(cursor);
+
+        String sql = """
+            SELECT p.id, p.content, p.image_url, p.created_at, p.like_count, p.comment_count,
+                   u.id AS user_id, u.username, u.avatar_url
+            FROM posts p
+            JOIN users u ON u.id = p.user_id
+            %s
+            ORDER BY p.created_at DESC, p.id DESC
+            LIMIT ?
+        """.formatted(cursor != null ? "WHERE p.created_at < ? OR (p.created_at = ? AND p.id < ?)" : "");
+
+        FeedPage.NextCursor next = new FeedPage.NextCursor(limit);
+
+        StreamingPayload posts = JsonRowStream.open(db, sql, ps -> {
+            int i = 1;
+            if (after != null) {
+                ps.setTimestamp(i++, after.createdAt());
+                ps.setTimestamp(i++, after.createdAt());
+                ps.setLong(i++, after.id());
+            }
+            // One more than the page to tell whether there is a next one
+            ps.setInt(i, limit + 1);
+        }, (rs, out) -> {
+            if (next.full()) {
+                next.more();
+                return;
+            }
+            writePost(rs, out);
+            next.wrote(rs.getTimestamp("created_at").getTime() + ":" + rs.getLong("id"));
+        });
+        return new FeedPage(posts, next);
+    }
+
+    /**
+     * Up to limit posts of the people the user follows, and their own, older than the cursor (a
+     * post id; the newest ones when it is null). The ids come from the user's home timeline, with
+     * posts of authors too big to fan out merged in; only when the page runs past what the
+     * timeline holds are they read from posts. The page is then read in one query.
+     */
+    public FeedPage listHomePage(int userId, String cursor, int limit) throws SQLException {
+        Long beforeId = null;
+        if (cursor != null) {
+            try {
+                beforeId = Long.parseLong(cursor);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
             }
         }
-        return posts;
+
+        long before = beforeId != null ? beforeId : Long.MAX_VALUE;
+        HomeTimelines.Slice slice = timelines.page(userId, beforeId, limit);
+        long[] ids;
+        boolean more;
+        if (slice == null) {
+            String sql = """
+                SELECT id FROM posts
+                WHERE (user_id = ? OR user_id IN (SELECT target_id FROM user_follows WHERE follower_id = ?))
+                  AND id < ?
+                ORDER BY id DESC
+                LIMIT ?
+            """;
+            ids = postIds(sql, ps -> {
+                ps.setInt(1, userId);
+                ps.setInt(2, userId);
+                ps.setLong(3, before);
+                ps.setInt(4, limit + 1);
+            });
+            more = ids.length > limit;
+        } else if (slice.mergeAuthors().length > 0) {
+            int[] authors = slice.mergeAuthors();
+            String sql = """
+                SELECT id FROM posts
+                WHERE user_id IN (%s) AND id < ?
+                ORDER BY id DESC
+                LIMIT ?
+            """.formatted(placeholders(authors.length));
+            long[] merged = postIds(sql, ps -> {
+                int i = 1;
+                for (int author : authors) {
+                    ps.setInt(i++, author);
+                }
+                ps.setLong(i++, before);
+                ps.setInt(i, limit + 1);
+            });
+            ids = mergeDescending(slice.postIds(), merged);
+            more = slice.more() || ids.length > limit;
+        } else {
+            ids = slice.postIds();
+            more = slice.more();
+        }
+        if (ids.length > limit) ids = Arrays.copyOf(ids, limit);
+
+        long[] page = ids;
+        String sql = """
+            SELECT p.id, p.content, p.image_url, p.created_at, p.like_count, p.comment_count,
+                   u.id AS user_id, u.username, u.avatar_url
+            FROM posts p
+            JOIN users u ON u.id = p.user_id
+            WHERE %s
+            ORDER BY p.id DESC
+        """.formatted(page.length > 0 ? "p.id IN (" + placeholders(page.length) + ")" : "FALSE");
+
+        StreamingPayload posts = JsonRowStream.open(db, sql, ps -> {
+            for (int i = 0; i < page.length; i++) {
+                ps.setLong(i + 1, page[i]);
+            }
+        }, this::writePost);
+        String next = more && page.length > 0 ? Long.toString(page[page.length - 1]) : null;
+        return new FeedPage(posts, FeedPage.NextCursor.of(next));
+    }
+
+    // Ranked in memory by TrendingPosts, then read in one query in that order
+    public StreamingPayload listTrending(int limit) throws SQLException {
+        return getPosts(trending.top(limit));
     }
 
-    public boolean likePost(int userId, long postId) throws SQLException {
+    // In the order of ids; posts that don't exist are left out
+    public StreamingPayload getPosts(long[] ids) throws SQLException {
         String sql = """
-            INSERT INTO post_likes (post_id, user_id)
-            VALUES (?, ?)
-            ON DUPLICATE KEY UPDATE liked_at = CURRENT_TIMESTAMP
-        """;
+            SELECT p.id, p.content, p.image_url, p.created_at, p.like_count, p.comment_count,
+                   u.id AS user_id, u.username, u.avatar_url
+            FROM posts p
+            JOIN users u ON u.id = p.user_id
+            WHERE %s
+        """.formatted(ids.length > 0
+                ? "p.id IN (%1$s) ORDER BY FIELD(p.id, %1$s)".formatted(placeholders(ids.length))
+                : "FALSE");
+
+        return JsonRowStream.open(db, sql, ps -> {
+            for (int i = 0; i < ids.length; i++) {
+                ps.setLong(i + 1, ids[i]);
+                ps.setLong(ids.length + i + 1, ids[i]);
+            }
+        }, this::writePost);
+    }
 
+    private long[] postIds(String sql, JsonRowStream.Binder binder) throws SQLException {
         try (Connection c = db.getConnection();
              PreparedStatement ps = c.prepareStatement(sql)) {
-            ps.setLong(1, postId);
-            ps.setInt(2, userId);
-            return ps.executeUpdate() > 0;
+            binder.bind(ps);
+            ResultSet rs = ps.executeQuery();
+            List<Long> ids = new ArrayList<>();
+            while (rs.next()) {
+                ids.add(rs.getLong(1));
+            }
+            return ids.stream().mapToLong(Long::longValue).toArray();
         }
     }
 
-    public boolean unlikePost(int userId, long postId) throws SQLException {
-        String sql = "DELETE FROM post_likes WHERE post_id = ? AND user_id = ?";
-
-        try (Connection c = db.getConnection();
-             PreparedStatement ps = c.prepareStatement(sql)) {
-            ps.setLong(1, postId);
-            ps.setInt(2, userId);
-            return ps.executeUpdate() > 0;
+    // Both newest first; ids in both are kept once
+    private static long[] mergeDescending(long[] a, long[] b) {
+        long[] out = new long[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length || j < b.length) {
+            long next;
+            if (j == b.length || (i < a.length && a[i] >= b[j])) {
+                next = a[i++];
+                if (j < b.length && b[j] == next) j++;
+            } else {
+                next = b[j++];
+            }
+            out[n++] = next;
         }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static String placeholders(int count) {
+        return String.join(",", Collections.nCopies(count, "?"));
+    }
+
+    private void writePost(ResultSet rs, JsonWriter out) throws SQLException, IOException {
+        long postId = rs.getLong("id");
+        out.beginObject();
+        out.name("post_id").value(postId);
+        out.name("content").value(rs.getString("content"));
+        out.name("image_url").value(Optional.ofNullable(rs.getString("image_url")).orElse(""));
+        out.name("created_at").value(rs.getTimestamp("created_at").toString());
+        out.name("user").beginObject();
+        out.name("id").value(rs.getInt("user_id"));
+        out.name("username").value(rs.getString("username"));
+        out.name("avatar_url").value(Optional.ofNullable(rs.getString("avatar_url")).orElse(""));
+        out.endObject();
+        // Counts are kept on posts by PostCounters, plus whatever it and LikeBuffer haven't written yet
+        out.name("likes").value(rs.getInt("like_count") + counters.pendingLikes(postId) + likes.pendingLikes(postId));
+        out.name("comments").value(rs.getInt("comment_count") + counters.pendingComments(postId));
+        out.endObject();
+    }
+
+    // Both are buffered and written in batches by LikeBuffer, which reports what they changed
+    public void likePost(int userId, long postId) throws SQLException {
+        likes.set(postId, userId, true);
+    }
+
+    public void unlikePost(int userId, long postId) throws SQLException {
+        likes.set(postId, userId, false);
     }
 
     /* ================= COMMENTS ================= */
@@ -114,6 +326,10 @@ public class FeedService {
             ps.setInt(2, userId);
             ps.setString(3, content);
             ps.executeUpdate();
+            counters.commented(postId, 1);
+            commentAdded(postId);
+            events.commented(postId, 1);
+            trending.commented(postId);
 
             ResultSet rs = ps.getGeneratedKeys();
             rs.next();
@@ -121,39 +337,113 @@ public class FeedService {
         }
     }
 
-    public List<Map<String, Object>> listComments(long postId) throws SQLException {
+    public StreamingPayload listComments(long postId) throws SQLException {
         String sql = """
             SELECT c.id, c.content, c.created_at,
                    u.id AS user_id, u.username, u.avatar_url
             FROM post_comments c
             JOIN users u ON u.id = c.user_id
             WHERE c.post_id = ?
-            ORDER BY c.created_at ASC
+            ORDER BY c.created_at ASC, c.id ASC
         """;
 
-        List<Map<String, Object>> comments = new ArrayList<>();
+        return JsonRowStream.open(db, sql, ps -> ps.setLong(1, postId), (rs, out) -> {
+            out.beginObject();
+            out.name("comment_id").value(rs.getLong("id"));
+            out.name("content").value(rs.getString("content"));
+            out.name("created_at").value(rs.getTimestamp("created_at").toString());
+            out.name("user").beginObject();
+            out.name("id").value(rs.getInt("user_id"));
+            out.name("username").value(rs.getString("username"));
+            out.name("avatar_url").value(rs.getString("avatar_url"));
+            out.endObject();
+            out.endObject();
+        });
+    }
+    /**
+     * Up to limit comments newer than the cursor, or the oldest ones when it is null. The first
+     * page comes from the cache, so opening a busy post doesn't read its comments every time.
+     */
+    public CommentPage listCommentPage(long postId, String cursor, int limit) throws SQLException {
+        if (cursor == null && limit <= CACHED_COMMENTS) {
+            FirstComments first = firstComments.get(postId, ids -> {
+                Map<Long, FirstComments> loaded = new HashMap<>();
+                for (long id : ids) {
+                    List<String> cursors = new ArrayList<>();
+                    List<Map<String, Object>> comments = readComments(id, null, CACHED_COMMENTS + 1, cursors);
+                    boolean more = comments.size() > CACHED_COMMENTS;
+                    if (more) {
+                        comments.removeLast();
+                        cursors.removeLast();
+                    }
+                    loaded.put(id, new FirstComments(List.copyOf(comments), List.copyOf(cursors), more));
+                }
+                return loaded;
+            });
+            int size = Math.min(limit, first.comments().size());
+            boolean more = first.comments().size() > size || first.more();
+            return new CommentPage(first.comments().subList(0, size), more ? first.cursors().get(size - 1) : null);
+        }
+
+        Cursor after = Cursor.parse(cursor);
+
+        List<String> cursors = new ArrayList<>();
+        List<Map<String, Object>> comments = readComments(postId, after, limit + 1, cursors);
+        if (comments.size() <= limit) return new CommentPage(comments, null);
+        return new CommentPage(comments.subList(0, limit), cursors.get(limit - 1));
+    }
+
+    private List<Map<String, Object>> readComments(long postId, Cursor after, int count, List<String> cursors)
+            throws SQLException {
+        String sql = """
+            SELECT c.id, c.content, c.created_at,
+                   u.id AS user_id, u.username, u.avatar_url
+            FROM post_comments c
+            JOIN users u ON u.id = c.user_id
+            WHERE c.post_id = ? %s
+            ORDER BY c.created_at ASC, c.id ASC
+            LIMIT ?
+        """.formatted(after != null ? "AND (c.created_at > ? OR (c.created_at = ? AND c.id > ?))" : "");
 
+        List<Map<String, Object>> comments = new ArrayList<>();
         try (Connection c = db.getConnection();
              PreparedStatement ps = c.prepareStatement(sql)) {
+            int i = 1;
+            ps.setLong(i++, postId);
+            if (after != null) {
+                ps.setTimestamp(i++, after.createdAt());
+                ps.setTimestamp(i++, after.createdAt());
+                ps.setLong(i++, after.id());
+            }
+            ps.setInt(i, count);
 
-            ps.setLong(1, postId);
             ResultSet rs = ps.executeQuery();
-
             while (rs.next()) {
+                Timestamp created = rs.getTimestamp("created_at");
                 comments.add(Map.of(
                         "comment_id", rs.getLong("id"),
                         "content", rs.getString("content"),
-                        "created_at", rs.getTimestamp("created_at").toString(),
+                        "created_at", created.toString(),
                         "user", Map.of(
                                 "id", rs.getInt("user_id"),
                                 "username", rs.getString("username"),
-                                "avatar_url", rs.getString("avatar_url")
+                                "avatar_url", Optional.ofNullable(rs.getString("avatar_url")).orElse("")
                         )
                 ));
+                cursors.add(created.getTime() + ":" + rs.getLong("id"));
             }
         }
         return comments;
     }
+
+    // A new comment is the newest, so a cached first page that is already full and has more stays as it is
+    private void commentAdded(long postId) {
+        FirstComments first = firstComments.peek(postId);
+        if (first == null || !first.more()) {
+            firstComments.invalidate(postId);
+        }
+    }
+
     public void attachPostImage(long postId, String imageUrl) throws SQLException {
         String sql = "UPDATE posts SET image_url=? WHERE id=?";
         try (Connection c = db.getConnection();
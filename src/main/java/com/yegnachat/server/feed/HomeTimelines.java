@@ -0,0 +1,272 @@
+package com.yegnachat.server.feed;
+
+import com.yegnachat.server.DatabaseService;
+import com.yegnachat.server.util.Metrics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Home timelines: the newest post ids of the people each user follows, and their own, newest
+ * first. Only recently read timelines are kept; one that isn't in memory is rebuilt from the
+ * database when it is next read, so eviction and restarts lose nothing.
+ *
+ * A new post is pushed into the loaded timelines of the author's followers (fan-out on write),
+ * unless the author has more than fanOutLimit followers. Posts of those authors are never pushed,
+ * readers merge them in from posts instead (fan-out on read).
+ */
+public class HomeTimelines {
+
+    /**
+     * A page of post ids, newest first, and whether the timeline goes on past it. Posts of
+     * mergeAuthors aren't in the timeline and have to be merged in by the reader.
+     */
+    public record Slice(long[] postIds, boolean more, int[] mergeAuthors) {}
+
+    private static final class Timeline {
+        final int[] following; // sorted, includes the owner
+        final long[] postIds;  // newest first
+        int size;
+        // The database had nothing older than the last id when this was built
+        boolean complete;
+
+        Timeline(int[] following, long[] postIds, int size, boolean complete) {
+            this.following = following;
+            this.postIds = postIds;
+            this.size = size;
+            this.complete = complete;
+        }
+
+        void push(long postId) {
+            int at = 0;
+            while (at < size && postIds[at] > postId) at++;
+            if (at < size && postIds[at] == postId) return;
+            if (at == postIds.length) return;
+
+            if (size == postIds.length) {
+                size--;
+                complete = false;
+            }
+            System.arraycopy(postIds, at, postIds, at + 1, size - at);
+            postIds[at] = postId;
+            size++;
+        }
+    }
+
+    // A timeline being read from the database; posts pushed meanwhile are added once it's done
+    private static final class Build {
+        final List<Long> pushed = new ArrayList<>();
+        boolean stale;
+    }
+
+    private final DatabaseService db;
+    private final int length;
+    private final int fanOutLimit;
+
+    // Insertion ordered, reads move a timeline to the end; pushes don't, so they keep nobody's alive
+    private final LinkedHashMap<Integer, Timeline> timelines;
+
+    private final Map<Integer, Build> building = new HashMap<>();
+
+    // Authors with more than fanOutLimit followers the last time they posted
+    private final Set<Integer> highFollowing = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public HomeTimelines(DatabaseService db, int maxTimelines, int length, int fanOutLimit) {
+        this.db = db;
+        this.length = Math.max(1, length);
+        this.fanOutLimit = fanOutLimit;
+        int max = Math.max(1, maxTimelines);
+        this.timelines = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Timeline> eldest) {
+                return size() > max;
+            }
+        };
+
+        Metrics.register("home_timeline_hits", hits::get);
+        Metrics.register("home_timeline_misses", misses::get);
+        Metrics.register("home_timeline_users", this::size);
+    }
+
+    // Finds who already posts without fan-out, so timelines read before their next post merge them in
+    public void loadHighFollowing() {
+        String sql = "SELECT target_id FROM user_follows GROUP BY target_id HAVING COUNT(*) > ?";
+        try (Connection conn = db.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, fanOutLimit);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                highFollowing.add(rs.getInt(1));
+            }
+        } catch (SQLException e) {
+            System.err.println("Loading high-following authors failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Fan-out on write for a post that was just stored. Followers are read up to one past the
+     * limit, which is all it takes to tell whether the author is over it.
+     */
+    public void published(int authorId, long postId) throws SQLException {
+        String sql = "SELECT follower_id FROM user_follows WHERE target_id = ? LIMIT ?";
+        int[] followers = new int[16];
+        int count = 0;
+        try (Connection conn = db.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, authorId);
+            ps.setInt(2, fanOutLimit + 1);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                if (count == followers.length) followers = Arrays.copyOf(followers, count * 2);
+                followers[count++] = rs.getInt(1);
+            }
+        }
+
+        boolean fanOut = count <= fanOutLimit;
+        if (fanOut) {
+            highFollowing.remove(authorId);
+        } else {
+            highFollowing.add(authorId);
+        }
+
+        synchronized (this) {
+            push(authorId, postId);
+            for (int i = 0; fanOut && i < count; i++) {
+                push(followers[i], postId);
+            }
+        }
+    }
+
+    private void push(int userId, long postId) {
+        Timeline timeline = timelines.get(userId);
+        if (timeline != null) {
+            timeline.push(postId);
+            return;
+        }
+        Build build = building.get(userId);
+        if (build != null) build.pushed.add(postId);
+    }
+
+    // Whom the user follows changed, the timeline is built again on the next read
+    public synchronized void invalidate(int userId) {
+        timelines.remove(userId);
+        Build build = building.get(userId);
+        if (build != null) build.stale = true;
+    }
+
+    /**
+     * Up to limit post ids older than beforeId (the newest when it is null), or null when the page
+     * runs past what the timeline holds and has to be read from the database instead.
+     */
+    public Slice page(int userId, Long beforeId, int limit) throws SQLException {
+        Timeline timeline = timeline(userId);
+        synchronized (this) {
+            int start = 0;
+            if (beforeId != null) {
+                while (start < timeline.size && timeline.postIds[start] >= beforeId) start++;
+            }
+            int end = Math.min(timeline.size, start + limit);
+            boolean more = end < timeline.size;
+            if (!more && !timeline.complete) return null;
+
+            int[] merge = highFollowing.isEmpty() ? new int[0]
+                    : Arrays.stream(timeline.following).filter(id -> id != userId && highFollowing.contains(id)).toArray();
+            return new Slice(Arrays.copyOfRange(timeline.postIds, start, end), more, merge);
+        }
+    }
+
+    private Timeline timeline(int userId) throws SQLException {
+        Build build = new Build();
+        synchronized (this) {
+            Timeline timeline = timelines.remove(userId);
+            if (timeline != null) {
+                timelines.put(userId, timeline);
+                hits.incrementAndGet();
+                return timeline;
+            }
+            // Someone else is already building it, this read just uses its own copy
+            if (building.putIfAbsent(userId, build) != null) build = null;
+        }
+        misses.incrementAndGet();
+
+        Timeline built;
+        try {
+            built = build(userId);
+        } finally {
+            if (build != null) {
+                synchronized (this) {
+                    building.remove(userId);
+                }
+            }
+        }
+
+        synchronized (this) {
+            if (build == null || build.stale) return built;
+            for (long postId : build.pushed) {
+                built.push(postId);
+            }
+            timelines.put(userId, built);
+            return built;
+        }
+    }
+
+    private Timeline build(int userId) throws SQLException {
+        try (Connection conn = db.getConnection()) {
+            int[] following = {userId};
+            int count = 1;
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "SELECT target_id FROM user_follows WHERE follower_id = ?")) {
+                ps.setInt(1, userId);
+                ResultSet rs = ps.executeQuery();
+                while (rs.next()) {
+                    if (count == following.length) following = Arrays.copyOf(following, count * 2);
+                    following[count++] = rs.getInt(1);
+                }
+            }
+            following = Arrays.stream(following, 0, count).sorted().distinct().toArray();
+
+            // One more than fits, to know whether anything older is left behind
+            String sql = """
+                    SELECT id FROM posts
+                    WHERE user_id = ? OR user_id IN (SELECT target_id FROM user_follows WHERE follower_id = ?)
+                    ORDER BY id DESC
+                    LIMIT ?
+                    """;
+            long[] postIds = new long[length];
+            int size = 0;
+            boolean complete = true;
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setInt(1, userId);
+                ps.setInt(2, userId);
+                ps.setInt(3, length + 1);
+                ResultSet rs = ps.executeQuery();
+                while (rs.next()) {
+                    if (size == length) {
+                        complete = false;
+                        break;
+                    }
+                    postIds[size++] = rs.getLong(1);
+                }
+            }
+            return new Timeline(following, postIds, size, complete);
+        }
+    }
+
+    private synchronized long size() {
+        return timelines.size();
+    }
+}
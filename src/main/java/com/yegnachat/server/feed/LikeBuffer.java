@@ -0,0 +1,290 @@
+package com.yegnachat.server.feed;
+
+import com.yegnachat.server.DatabaseService;
+import com.yegnachat.server.util.Metrics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Likes and unlikes waiting to be written to post_likes. Only the last tap of a user on a post is
+ * kept, so toggling a like ten times is one row written. One thread writes what is pending every
+ * flushInterval with a few multi-row statements, then hands the change in count to PostCounters.
+ *
+ * Until then, readers add the pending taps to the like count. The first tap of a user on a post
+ * looks up whether post_likes already has the like, so liking a liked post or unliking one that was
+ * never liked adds nothing. Only the flush knows what was really written, so listeners hear about it
+ * from there.
+ */
+public class LikeBuffer {
+
+    // Told the real change in likes of a post once it is written
+    public interface Listener {
+        void liked(long postId, int change);
+    }
+
+    // Likes written per statement
+    private static final int FLUSH_CHUNK = 500;
+
+    private record Key(long postId, int userId) {}
+
+    // A user's last tap on a post, and whether post_likes had the like before the first tap
+    private record Tap(boolean liked, boolean stored) {
+
+        // What the tap adds to the post's likes once written
+        int change() {
+            return liked == stored ? 0 : weight(liked);
+        }
+    }
+
+    // Whether post_likes has a like, asked once per user and post until the taps are written
+    interface StoredLikes {
+        boolean contains(long postId, int userId) throws SQLException;
+    }
+
+    private final DatabaseService db;
+    private final PostCounters counters;
+    private final long flushIntervalMillis;
+    private final StoredLikes stored;
+
+    // Drained with remove(), so nothing added concurrently is lost
+    private final Map<Key, Tap> pending = new ConcurrentHashMap<>();
+    // Taps the flush has taken and not written yet; a new tap starts from what they will leave stored
+    private final Map<Key, Boolean> writing = new ConcurrentHashMap<>();
+    // Sum of the pending changes per post, until the flush has passed them on to counters
+    private final Map<Long, Integer> estimates = new ConcurrentHashMap<>();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong taps = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final Thread flusher;
+    private volatile boolean closed;
+
+    public LikeBuffer(DatabaseService db, PostCounters counters, long flushIntervalMillis) {
+        this(db, counters, flushIntervalMillis, null);
+    }
+
+    // stored may be null to look likes up in post_likes
+    LikeBuffer(DatabaseService db, PostCounters counters, long flushIntervalMillis, StoredLikes stored) {
+        this.db = db;
+        this.counters = counters;
+        this.flushIntervalMillis = Math.max(10, flushIntervalMillis);
+        this.stored = stored != null ? stored : this::isStored;
+
+        Metrics.register("like_buffer_pending", pending::size);
+        Metrics.register("like_buffer_taps", taps::get);
+        Metrics.register("like_buffer_written", written::get);
+
+        this.flusher = Thread.ofPlatform().name("like-buffer").daemon(true).start(this::run);
+    }
+
+    // False when the tap changes nothing, e.g. liking a post the user already likes
+    public boolean set(long postId, int userId, boolean liked) throws SQLException {
+        taps.incrementAndGet();
+        Key key = new Key(postId, userId);
+        Tap earlier = pending.get(key);
+        Boolean wasStored = earlier != null ? Boolean.valueOf(earlier.stored()) : writing.get(key);
+        if (wasStored == null) wasStored = stored.contains(postId, userId);
+
+        Tap tap = new Tap(liked, wasStored);
+        Tap previous = pending.put(key, tap);
+        int change = tap.change() - (previous != null ? previous.change() : 0);
+        if (change != 0) estimates.merge(postId, change, LikeBuffer::sum);
+        return change != 0;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    // Likes not yet counted by PostCounters
+    public int pendingLikes(long postId) {
+        return estimates.getOrDefault(postId, 0);
+    }
+
+    private static int weight(boolean liked) {
+        return liked ? 1 : -1;
+    }
+
+    private static Integer sum(Integer a, Integer b) {
+        int total = a + b;
+        return total == 0 ? null : total;
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                Thread.sleep(flushIntervalMillis);
+                flush();
+            } catch (InterruptedException e) {
+                break;
+            } catch (SQLException e) {
+                System.err.println("Like flush failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void flush() throws SQLException {
+        if (pending.isEmpty()) return;
+
+        Map<Key, Tap> batch = new HashMap<>();
+        for (Key key : pending.keySet()) {
+            Tap tap = pending.remove(key);
+            if (tap != null) {
+                batch.put(key, tap);
+                writing.put(key, tap.liked());
+            }
+        }
+        if (batch.isEmpty()) return;
+
+        List<Key> keys = new ArrayList<>(batch.keySet());
+        for (int from = 0; from < keys.size(); from += FLUSH_CHUNK) {
+            List<Key> chunk = keys.subList(from, Math.min(keys.size(), from + FLUSH_CHUNK));
+            try {
+                write(chunk, batch);
+            } catch (SQLException e) {
+                // Put back what wasn't written; a newer tap of the same user wins
+                for (Key key : keys.subList(from, keys.size())) {
+                    Tap tap = batch.get(key);
+                    if (pending.putIfAbsent(key, tap) != null) settled(key, tap);
+                    writing.remove(key);
+                }
+                throw e;
+            }
+        }
+    }
+
+    private void write(List<Key> chunk, Map<Key, Tap> batch) throws SQLException {
+        try (Connection conn = db.getConnection()) {
+            Set<Key> existing = existing(conn, chunk);
+            Set<Long> posts = posts(conn, chunk);
+
+            List<Key> likes = new ArrayList<>();
+            List<Key> unlikes = new ArrayList<>();
+            Map<Long, Integer> changes = new HashMap<>();
+            for (Key key : chunk) {
+                boolean liked = batch.get(key).liked();
+                if (liked && posts.contains(key.postId())) {
+                    likes.add(key);
+                    if (!existing.contains(key)) changes.merge(key.postId(), 1, Integer::sum);
+                } else if (!liked && existing.contains(key)) {
+                    unlikes.add(key);
+                    changes.merge(key.postId(), -1, Integer::sum);
+                }
+            }
+
+            if (!likes.isEmpty()) {
+                // Liking again only moves liked_at
+                String sql = "INSERT INTO post_likes (post_id, user_id) VALUES " + pairs(likes.size(), "(?, ?)")
+                        + " ON DUPLICATE KEY UPDATE liked_at = CURRENT_TIMESTAMP";
+                try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                    bind(ps, likes);
+                    ps.executeUpdate();
+                }
+            }
+            if (!unlikes.isEmpty()) {
+                String sql = "DELETE FROM post_likes WHERE (post_id, user_id) IN (" + pairs(unlikes.size(), "(?, ?)") + ")";
+                try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                    bind(ps, unlikes);
+                    ps.executeUpdate();
+                }
+            }
+            written.addAndGet(likes.size() + unlikes.size());
+
+            // The real change goes to counters before the estimate is dropped, so reads never miss it
+            changes.forEach(counters::liked);
+            changes.forEach((postId, change) -> {
+                if (change != 0) listeners.forEach(l -> l.liked(postId, change));
+            });
+        }
+        for (Key key : chunk) {
+            settled(key, batch.get(key));
+            writing.remove(key);
+        }
+    }
+
+    private void settled(Key key, Tap tap) {
+        if (tap.change() != 0) estimates.merge(key.postId(), -tap.change(), LikeBuffer::sum);
+    }
+
+    private boolean isStored(long postId, int userId) throws SQLException {
+        try (Connection conn = db.getConnection();
+             PreparedStatement ps = conn.prepareStatement("SELECT 1 FROM post_likes WHERE post_id = ? AND user_id = ?")) {
+            ps.setLong(1, postId);
+            ps.setInt(2, userId);
+            ResultSet rs = ps.executeQuery();
+            return rs.next();
+        }
+    }
+
+    private static Set<Key> existing(Connection conn, List<Key> chunk) throws SQLException {
+        String sql = "SELECT post_id, user_id FROM post_likes WHERE (post_id, user_id) IN ("
+                + pairs(chunk.size(), "(?, ?)") + ")";
+        Set<Key> found = new HashSet<>();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            bind(ps, chunk);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                found.add(new Key(rs.getLong(1), rs.getInt(2)));
+            }
+        }
+        return found;
+    }
+
+    // Likes of posts deleted meanwhile, or that never existed, are dropped instead of failing the batch
+    private static Set<Long> posts(Connection conn, List<Key> chunk) throws SQLException {
+        List<Long> ids = chunk.stream().map(Key::postId).distinct().toList();
+        String sql = "SELECT id FROM posts WHERE id IN (" + pairs(ids.size(), "?") + ")";
+        Set<Long> found = new HashSet<>();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (int i = 0; i < ids.size(); i++) {
+                ps.setLong(i + 1, ids.get(i));
+            }
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                found.add(rs.getLong(1));
+            }
+        }
+        return found;
+    }
+
+    private static String pairs(int count, String placeholder) {
+        return String.join(", ", Collections.nCopies(count, placeholder));
+    }
+
+    private static void bind(PreparedStatement ps, List<Key> keys) throws SQLException {
+        int i = 1;
+        for (Key key : keys) {
+            ps.setLong(i++, key.postId());
+            ps.setInt(i++, key.userId());
+        }
+    }
+
+    // Writes what is still pending and stops the flusher; close before PostCounters
+    public void close() {
+        closed = true;
+        flusher.interrupt();
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(10));
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (SQLException e) {
+            System.err.println("Like flush failed: " + e.getMessage());
+        }
+    }
+}
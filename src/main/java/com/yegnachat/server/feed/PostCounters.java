@@ -0,0 +1,181 @@
+package com.yegnachat.server.feed;
+
+import com.yegnachat.server.DatabaseService;
+import com.yegnachat.server.util.Metrics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Like and comment counts of posts, stored on posts.like_count and posts.comment_count so feed
+ * pages read them instead of counting rows.
+ *
+ * Likes and comments only add to an in-memory delta per post; one thread writes the deltas to
+ * posts every flushInterval, so a burst on a popular post becomes one UPDATE. Until then readers
+ * add the pending delta to what they read. The same thread recounts everything from post_likes and
+ * post_comments at startup and every reconcileInterval, repairing whatever a crash or a race lost.
+ */
+public final class PostCounters {
+
+    // Posts recounted per UPDATE when reconciling
+    private static final int RECONCILE_CHUNK = 1000;
+
+    private static final String RECONCILE = """
+            UPDATE posts p
+            LEFT JOIN (SELECT post_id, COUNT(*) AS n FROM post_likes
+                       WHERE post_id > ? AND post_id <= ? GROUP BY post_id) l ON l.post_id = p.id
+            LEFT JOIN (SELECT post_id, COUNT(*) AS n FROM post_comments
+                       WHERE post_id > ? AND post_id <= ? GROUP BY post_id) c ON c.post_id = p.id
+            SET p.like_count = COALESCE(l.n, 0), p.comment_count = COALESCE(c.n, 0)
+            WHERE p.id > ? AND p.id <= ?
+              AND (p.like_count <> COALESCE(l.n, 0) OR p.comment_count <> COALESCE(c.n, 0))
+            """;
+
+    private final DatabaseService db;
+    private final long flushIntervalMillis;
+    private final long reconcileIntervalMillis;
+
+    // Not yet written to posts. Drained with remove(), so nothing added concurrently is lost
+    private final Map<Long, Integer> likeDeltas = new ConcurrentHashMap<>();
+    private final Map<Long, Integer> commentDeltas = new ConcurrentHashMap<>();
+
+    private final AtomicLong repaired = new AtomicLong();
+    private final Thread flusher;
+    private volatile boolean closed;
+
+    public PostCounters(DatabaseService db, long flushIntervalMillis, long reconcileIntervalMinutes) {
+        this.db = db;
+        this.flushIntervalMillis = Math.max(10, flushIntervalMillis);
+        this.reconcileIntervalMillis = TimeUnit.MINUTES.toMillis(Math.max(1, reconcileIntervalMinutes));
+
+        Metrics.register("post_counters_pending", () -> likeDeltas.size() + commentDeltas.size());
+        Metrics.register("post_counters_repaired", repaired::get);
+
+        this.flusher = Thread.ofPlatform().name("post-counters").daemon(true).start(this::run);
+    }
+
+    public void liked(long postId, int change) {
+        likeDeltas.merge(postId, change, PostCounters::sum);
+    }
+
+    public void commented(long postId, int change) {
+        commentDeltas.merge(postId, change, PostCounters::sum);
+    }
+
+    // Changes not in posts yet
+    public int pendingLikes(long postId) {
+        return likeDeltas.getOrDefault(postId, 0);
+    }
+
+    public int pendingComments(long postId) {
+        return commentDeltas.getOrDefault(postId, 0);
+    }
+
+    // Drops entries that cancel out, e.g. a like followed by an unlike
+    private static Integer sum(Integer a, Integer b) {
+        int total = a + b;
+        return total == 0 ? null : total;
+    }
+
+    private void run() {
+        // The first pass also fills the columns after an upgrade
+        long nextReconcile = System.currentTimeMillis();
+        while (!closed) {
+            try {
+                if (System.currentTimeMillis() >= nextReconcile) {
+                    nextReconcile = System.currentTimeMillis() + reconcileIntervalMillis;
+                    reconcile();
+                }
+                Thread.sleep(flushIntervalMillis);
+                flush();
+            } catch (InterruptedException e) {
+                break;
+            } catch (SQLException e) {
+                System.err.println("Post counter update failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void flush() throws SQLException {
+        if (likeDeltas.isEmpty() && commentDeltas.isEmpty()) return;
+
+        Map<Long, int[]> batch = new HashMap<>();
+        for (Long postId : likeDeltas.keySet()) {
+            Integer delta = likeDeltas.remove(postId);
+            if (delta != null) batch.computeIfAbsent(postId, id -> new int[2])[0] = delta;
+        }
+        for (Long postId : commentDeltas.keySet()) {
+            Integer delta = commentDeltas.remove(postId);
+            if (delta != null) batch.computeIfAbsent(postId, id -> new int[2])[1] = delta;
+        }
+        if (batch.isEmpty()) return;
+
+        String sql = "UPDATE posts SET like_count = like_count + ?, comment_count = comment_count + ? WHERE id = ?";
+        try (Connection conn = db.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (Map.Entry<Long, int[]> post : batch.entrySet()) {
+                ps.setInt(1, post.getValue()[0]);
+                ps.setInt(2, post.getValue()[1]);
+                ps.setLong(3, post.getKey());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        } catch (SQLException e) {
+            // Put them back for the next attempt
+            batch.forEach((postId, delta) -> {
+                if (delta[0] != 0) liked(postId, delta[0]);
+                if (delta[1] != 0) commented(postId, delta[1]);
+            });
+            throw e;
+        }
+    }
+
+    /**
+     * Recounts every post, a chunk of ids at a time. Pending deltas are flushed before each chunk;
+     * a like landing while its chunk is recounted can still be counted twice until the next pass.
+     */
+    private void reconcile() throws SQLException {
+        long maxId;
+        try (Connection conn = db.getConnection();
+             Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT COALESCE(MAX(id), 0) FROM posts")) {
+            rs.next();
+            maxId = rs.getLong(1);
+        }
+
+        for (long from = 0; from < maxId && !closed; from += RECONCILE_CHUNK) {
+            flush();
+            long to = from + RECONCILE_CHUNK;
+            try (Connection conn = db.getConnection();
+                 PreparedStatement ps = conn.prepareStatement(RECONCILE)) {
+                for (int i = 0; i < 3; i++) {
+                    ps.setLong(2 * i + 1, from);
+                    ps.setLong(2 * i + 2, to);
+                }
+                repaired.addAndGet(ps.executeUpdate());
+            }
+        }
+    }
+
+    // Writes what is still pending and stops the flusher
+    public void close() {
+        closed = true;
+        flusher.interrupt();
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(10));
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (SQLException e) {
+            System.err.println("Post counter update failed: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.yegnachat.server.feed;
+
+import com.yegnachat.server.DatabaseService;
+import com.yegnachat.server.util.Metrics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trending posts, ranked in memory by an exponentially decaying score: every like, comment and the
+ * post itself add a weight that halves every halfLife.
+ *
+ * Instead of decaying every score as time passes, each weight is scaled up by how far after the
+ * reference time it arrived, which keeps the order the same and means an event only touches its own
+ * post. Only the top maxPosts posts are kept; the lowest one is dropped to make room.
+ */
+public class TrendingPosts {
+
+    private static final double POST_WEIGHT = 1;
+    private static final double LIKE_WEIGHT = 1;
+    private static final double COMMENT_WEIGHT = 2;
+
+    // Events older than this many half-lives add too little to be worth reading back at startup
+    private static final int REBUILD_HALF_LIVES = 4;
+
+    // Scaled weights grow by 2^this before the reference time is moved up
+    private static final int REBASE_HALF_LIVES = 30;
+
+    private static final class Score {
+        final long postId;
+        double value;
+
+        Score(long postId) {
+            this.postId = postId;
+        }
+    }
+
+    // Highest first
+    private static final Comparator<Score> RANK = Comparator.<Score>comparingDouble(s -> -s.value)
+            .thenComparing(s -> -s.postId);
+
+    private final DatabaseService db;
+    private final int maxPosts;
+    private final long halfLifeMillis;
+    private final double lambda;
+
+    private final Map<Long, Score> scores = new HashMap<>();
+    private TreeSet<Score> ranking = new TreeSet<>(RANK);
+    private long referenceMillis = System.currentTimeMillis();
+
+    public TrendingPosts(DatabaseService db, int maxPosts, long halfLifeMinutes) {
+        this.db = db;
+        this.maxPosts = Math.max(1, maxPosts);
+        this.halfLifeMillis = TimeUnit.MINUTES.toMillis(Math.max(1, halfLifeMinutes));
+        this.lambda = Math.log(2) / halfLifeMillis;
+
+        Metrics.register("trending_posts", this::size);
+    }
+
+    public void posted(long postId) {
+        add(postId, POST_WEIGHT, System.currentTimeMillis());
+    }
+
+    public void liked(long postId, int change) {
+        add(postId, change * LIKE_WEIGHT, System.currentTimeMillis());
+    }
+
+    public void commented(long postId) {
+        add(postId, COMMENT_WEIGHT, System.currentTimeMillis());
+    }
+
+    // Up to limit post ids, highest score first
+    public synchronized long[] top(int limit) {
+        long[] top = new long[Math.min(limit, ranking.size())];
+        Iterator<Score> it = ranking.iterator();
+        for (int i = 0; i < top.length; i++) {
+            top[i] = it.next().postId;
+        }
+        return top;
+    }
+
+    // Package-private so tests can place events in time
+    synchronized void add(long postId, double weight, long atMillis) {
+        if (atMillis - referenceMillis > REBASE_HALF_LIVES * halfLifeMillis) rebase(atMillis);
+
+        Score score = scores.get(postId);
+        if (score == null) {
+            // An unlike of a post that isn't ranked has nothing to take away from
+            if (weight <= 0) return;
+            score = new Score(postId);
+            scores.put(postId, score);
+        } else {
+            ranking.remove(score);
+        }
+        score.value = Math.max(0, score.value + weight * Math.exp(lambda * (atMillis - referenceMillis)));
+        ranking.add(score);
+
+        if (ranking.size() > maxPosts) {
+            scores.remove(ranking.pollLast().postId);
+        }
+    }
+
+    // Scales every score down to a newer reference time before the numbers get too large
+    private void rebase(long nowMillis) {
+        double factor = Math.exp(-lambda * (nowMillis - referenceMillis));
+        TreeSet<Score> rebased = new TreeSet<>(RANK);
+        for (Score score : scores.values()) {
+            score.value *= factor;
+            rebased.add(score);
+        }
+        ranking = rebased;
+        referenceMillis = nowMillis;
+    }
+
+    /**
+     * Replays the posts, likes and comments of the last few half-lives. Called once at startup,
+     * before any live event.
+     */
+    public void rebuild() {
+        long since = System.currentTimeMillis() - REBUILD_HALF_LIVES * halfLifeMillis;
+        String sql = """
+                SELECT id, created_at, 'post' FROM posts WHERE created_at > ?
+                UNION ALL
+                SELECT post_id, liked_at, 'like' FROM post_likes WHERE liked_at > ?
+                UNION ALL
+                SELECT post_id, created_at, 'comment' FROM post_comments WHERE created_at > ?
+                """;
+        try (Connection conn = db.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            ps.setFetchSize(Integer.MIN_VALUE);
+            Timestamp from = new Timestamp(since);
+            for (int i = 1; i <= 3; i++) {
+                ps.setTimestamp(i, from);
+            }
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                double weight = switch (rs.getString(3)) {
+                    case "like" -> LIKE_WEIGHT;
+                    case "comment" -> COMMENT_WEIGHT;
+                    default -> POST_WEIGHT;
+                };
+                add(rs.getLong(1), weight, rs.getTimestamp(2).getTime());
+            }
+        } catch (SQLException e) {
+            System.err.println("Rebuilding trending posts failed: " + e.getMessage());
+        }
+    }
+
+    private synchronized long size() {
+        return scores.size();
+    }
+}
@@ -2,9 +2,12 @@ package com.yegnachat.server.http;
 
 import com.sun.net.httpserver.HttpServer;
 import com.yegnachat.server.image.ImageHandler;
+import com.yegnachat.server.util.Metrics;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 
 public class HttpImageServer {
@@ -15,6 +18,14 @@ public class HttpImageServer {
         server = HttpServer.create(new InetSocketAddress(port), 0);
 
         server.createContext("/uploads", new ImageHandler(imageRoot));
+        server.createContext("/metrics", exchange -> {
+            byte[] body = Metrics.render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
 
         server.setExecutor(null);
         System.out.println("HTTP Image Server started on port " + port);
@@ -1,6 +1,7 @@
 package com.yegnachat.server.image;
 
 import com.yegnachat.server.DatabaseService;
+import com.yegnachat.server.user.UserService;
 import io.github.cdimascio.dotenv.Dotenv;
 
 import java.io.IOException;
@@ -14,11 +15,16 @@ public class ImageUploadService {
     private static Dotenv dotenv = Dotenv.load();
     private static Path rootDir = Path.of(dotenv.get("DB_IMAGE_LOCATION"));
     private static DatabaseService db;
+    private static UserService userService;
 
     public static void setDb(DatabaseService db) {
         ImageUploadService.db = db;
     }
 
+    public static void setUserService(UserService userService) {
+        ImageUploadService.userService = userService;
+    }
+
     public static String uploadImage(String purpose, int ownerId, InputStream fileStream, String mime) throws SQLException, IOException {
         String ext = mimeToExt(mime);
         Path saveDir = rootDir.resolve(purpose);
@@ -46,6 +52,9 @@ public class ImageUploadService {
                 ps.executeUpdate();
             }
         }
+        if ("avatar".equals(purpose) && userService != null) {
+            userService.invalidateProfile(ownerId);
+        }
 
         return imageUrl;
     }
@@ -0,0 +1,363 @@
+package com.yegnachat.server.net;
+
+import com.yegnachat.server.ClientHandler;
+import com.yegnachat.server.MessageRouter;
+import com.yegnachat.server.protocol.Frame;
+import com.yegnachat.server.protocol.FrameDecoder;
+import com.yegnachat.server.protocol.Framing;
+import com.yegnachat.server.util.BufferPool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking transport. Read and write buffers are borrowed from the pools only while there
+ * are bytes to move, so an idle connection holds no buffer at all.
+ *
+ * Frames from one client are handed to handleFrame one at a time, like the blocking transport:
+ * decoding stops while a frame is on a worker thread and resumes once handleFrame returns, which
+ * for most requests is as soon as they have been dispatched.
+ */
+public class NioClientHandler extends ClientHandler {
+
+    private static final int BINARY_QUEUE_CHUNKS = 16;
+    private static final long BINARY_IDLE_TIMEOUT_MILLIS = 30_000;
+
+    private final SocketChannel channel;
+    private final SelectorLoop loop;
+    private final BufferPool readBuffers;
+    private final BufferPool writeBuffers;
+    private final Executor workers;
+    private final String address;
+
+    // Everything below is owned by the selector loop thread
+    private final FrameDecoder decoder = new FrameDecoder();
+    private SelectionKey key;
+    private Framing framing;
+    private ByteBuffer readBuffer;
+    private ByteBuffer writeBuffer;
+    private boolean preamblePending;
+    private ByteBuffer pendingPayload;
+    private Frame.Type pendingType;
+    private boolean trailerPending;
+    private boolean frameInFlight;
+    private long binaryExpected;
+
+    // Chunks of an upload, passed from the loop to the worker reading them
+    private volatile BlockingQueue<byte[]> binaryChunks;
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    NioClientHandler(SocketChannel channel, SelectorLoop loop, MessageRouter router, int outboundCapacity,
+                     OverflowPolicy overflowPolicy, int maxInFlight, BufferPool readBuffers,
+                     BufferPool writeBuffers, Executor workers) throws IOException {
+        super(router, outboundCapacity, overflowPolicy, maxInFlight);
+        this.channel = channel;
+        this.loop = loop;
+        this.readBuffers = readBuffers;
+        this.writeBuffers = writeBuffers;
+        this.workers = workers;
+        this.address = String.valueOf(channel.getRemoteAddress());
+    }
+
+    // Runs on the loop thread
+    void register() {
+        try {
+            key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+        } catch (ClosedChannelException e) {
+            close();
+        }
+    }
+
+    /* ================= READ ================= */
+
+    void onReadable() throws IOException {
+        if (readBuffer == null) {
+            readBuffer = readBuffers.acquire();
+            readBuffer.limit(0);
+        }
+        readBuffer.compact();
+        int n = channel.read(readBuffer);
+        readBuffer.flip();
+        if (n < 0) {
+            close();
+            return;
+        }
+        processInbound();
+    }
+
+    private void processInbound() throws IOException {
+        if (readBuffer != null) {
+            if (framing == null) {
+                framing = decoder.negotiate(readBuffer);
+                if (framing == Framing.LENGTH_PREFIXED) {
+                    // Echo the preamble so the client knows this server speaks length prefixed frames
+                    preamblePending = true;
+                    flush();
+                }
+            }
+
+            while (framing != null && (!frameInFlight || binaryExpected > 0)) {
+                if (binaryExpected > 0 && binaryChunks.remainingCapacity() == 0) break;
+
+                Frame frame = decoder.decode(readBuffer);
+                if (frame == null) break;
+
+                if (frame.type() == Frame.Type.BINARY) {
+                    // Leftover chunks of an upload the router gave up on are dropped
+                    if (binaryExpected == 0) continue;
+                    ByteBuffer data = frame.data();
+                    if (data.remaining() > binaryExpected) {
+                        throw new ProtocolException("Binary frame exceeds declared size");
+                    }
+                    byte[] chunk = new byte[data.remaining()];
+                    data.get(chunk);
+                    binaryExpected -= chunk.length;
+                    binaryChunks.offer(chunk);
+                    continue;
+                }
+
+                if (frameInFlight) {
+                    throw new ProtocolException("Expected binary frame");
+                }
+                frameInFlight = true;
+                String json = frame.json();
+                workers.execute(() -> route(json));
+            }
+
+            if (!readBuffer.hasRemaining()) {
+                readBuffers.release(readBuffer);
+                readBuffer = null;
+            }
+        }
+        updateInterest();
+    }
+
+    // Worker thread
+    private void route(String json) {
+        try {
+            handleFrame(json);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            close();
+        } finally {
+            loop.execute(this::frameCompleted);
+        }
+    }
+
+    private void frameCompleted() {
+        if (isClosed()) return;
+        frameInFlight = false;
+        // The decoder keeps marking raw bytes of an upload the router gave up on, so they are dropped
+        // as leftover chunks instead of being parsed as lines
+        binaryExpected = 0;
+        binaryChunks = null;
+        try {
+            processInbound();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    // Called by the router on the worker thread handling the current frame
+    @Override
+    public InputStream readBinary(long size) {
+        BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(BINARY_QUEUE_CHUNKS);
+        binaryChunks = chunks;
+        loop.execute(() -> {
+            if (isClosed()) return;
+            binaryExpected = size;
+            decoder.expectRaw(size);
+            try {
+                processInbound();
+            } catch (IOException e) {
+                close();
+            }
+        });
+        return new BinaryInputStream(chunks, size);
+    }
+
+    private class BinaryInputStream extends InputStream {
+
+        private final BlockingQueue<byte[]> chunks;
+        private long remaining;
+        private byte[] chunk = new byte[0];
+        private int offset;
+
+        BinaryInputStream(BlockingQueue<byte[]> chunks, long size) {
+            this.chunks = chunks;
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (offset == chunk.length) {
+                if (remaining == 0) return -1;
+                nextChunk();
+            }
+            int n = Math.min(len, chunk.length - offset);
+            System.arraycopy(chunk, offset, b, off, n);
+            offset += n;
+            return n;
+        }
+
+        private void nextChunk() throws IOException {
+            long deadline = System.currentTimeMillis() + BINARY_IDLE_TIMEOUT_MILLIS;
+            byte[] next = null;
+            try {
+                while (next == null) {
+                    if (isClosed()) throw new EOFException("Connection closed during binary transfer");
+                    if (System.currentTimeMillis() > deadline) throw new SocketTimeoutException("Binary transfer stalled");
+                    next = chunks.poll(1, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted during binary transfer", e);
+            }
+            chunk = next;
+            offset = 0;
+            remaining -= next.length;
+            // A slot freed up, the loop may have paused reading
+            loop.execute(() -> {
+                try {
+                    if (!isClosed()) processInbound();
+                } catch (IOException e) {
+                    NioClientHandler.this.close();
+                }
+            });
+        }
+    }
+
+    /* ================= WRITE ================= */
+
+    @Override
+    protected void onFrameQueued() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    close();
+                }
+            });
+        }
+    }
+
+    void onWritable() throws IOException {
+        flush();
+    }
+
+    // Copies queued frames into a pooled direct buffer and writes as much as the socket takes
+    private void flush() throws IOException {
+        flushScheduled.set(false);
+        // Still writes after closeAfterReply, until the queue has drained
+        if (!channel.isOpen() || framing == null) return;
+
+        while (true) {
+            if (writeBuffer == null) writeBuffer = writeBuffers.acquire();
+            fillWriteBuffer();
+
+            writeBuffer.flip();
+            if (writeBuffer.hasRemaining()) channel.write(writeBuffer);
+            boolean drained = !writeBuffer.hasRemaining();
+            writeBuffer.compact();
+
+            if (!drained) break;
+            if (pendingPayload == null && !trailerPending && outbound.isEmpty()) {
+                writeBuffers.release(writeBuffer);
+                writeBuffer = null;
+                if (outbound.isDrained()) close();
+                break;
+            }
+        }
+        updateInterest();
+    }
+
+    private void fillWriteBuffer() {
+        if (preamblePending && writeBuffer.remaining() >= Framing.MAGIC.length) {
+            writeBuffer.put(Framing.MAGIC);
+            preamblePending = false;
+        }
+
+        while (writeBuffer.hasRemaining()) {
+            if (pendingPayload != null) {
+                int n = Math.min(writeBuffer.remaining(), pendingPayload.remaining());
+                writeBuffer.put(writeBuffer.position(), pendingPayload, pendingPayload.position(), n);
+                writeBuffer.position(writeBuffer.position() + n);
+                pendingPayload.position(pendingPayload.position() + n);
+                if (pendingPayload.hasRemaining()) return;
+                pendingPayload = null;
+                trailerPending = framing.trailerSize(pendingType) > 0;
+            }
+
+            if (trailerPending) {
+                if (writeBuffer.remaining() < framing.trailerSize(pendingType)) return;
+                framing.putTrailer(writeBuffer);
+                trailerPending = false;
+            }
+
+            if (writeBuffer.remaining() < framing.headerSize()) return;
+            OutboundFrame frame = outbound.poll();
+            if (frame == null) return;
+            framing.putHeader(writeBuffer, frame.type(), frame.length());
+            pendingPayload = frame.payload();
+            pendingType = frame.type();
+        }
+    }
+
+    /* ================= HOUSEKEEPING ================= */
+
+    private void updateInterest() {
+        if (key == null || !key.isValid()) return;
+
+        // Stop reading while a frame is routed (or an upload backs up) and let TCP push back
+        boolean readPaused = frameInFlight
+                && (binaryExpected == 0 || binaryChunks == null || binaryChunks.remainingCapacity() == 0);
+        boolean writePending = writeBuffer != null;
+
+        int ops = (readPaused ? 0 : SelectionKey.OP_READ) | (writePending ? SelectionKey.OP_WRITE : 0);
+        if (key.interestOps() != ops) key.interestOps(ops);
+    }
+
+    @Override
+    protected String remoteAddress() {
+        return address;
+    }
+
+    @Override
+    protected void closeTransport() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        // Buffers belong to the loop thread, hand them back from there
+        loop.execute(() -> {
+            if (key != null) key.cancel();
+            readBuffers.release(readBuffer);
+            writeBuffers.release(writeBuffer);
+            readBuffer = null;
+            writeBuffer = null;
+            pendingPayload = null;
+        });
+    }
+}
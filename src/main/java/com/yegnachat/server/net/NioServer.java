@@ -0,0 +1,89 @@
+package com.yegnachat.server.net;
+
+import com.yegnachat.server.MessageRouter;
+import com.yegnachat.server.ServerConfig;
+import com.yegnachat.server.util.BufferPool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * NIO transport: the calling thread accepts, a handful of selector loops do all socket I/O with
+ * pooled direct buffers, and decoded frames are routed on virtual worker threads.
+ */
+public class NioServer {
+
+    private final ServerSocketChannel serverChannel;
+    private final SelectorLoop[] loops;
+    private final MessageRouter router;
+    private final ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor();
+    private final BufferPool readBuffers;
+    private final BufferPool writeBuffers;
+    private final int outboundCapacity;
+    private final OverflowPolicy overflowPolicy;
+    private final int maxInFlight;
+    private int nextLoop;
+
+    public NioServer(int port, MessageRouter router, ServerConfig config) throws IOException {
+        this.router = router;
+        this.outboundCapacity = config.outboundQueueCapacity();
+        this.overflowPolicy = config.outboundOverflowPolicy();
+        this.maxInFlight = config.maxInFlightRequests();
+        this.readBuffers = new BufferPool(config.readBufferSize(), true, config.maxPooledBuffers());
+        this.writeBuffers = new BufferPool(config.writeBufferSize(), true, config.maxPooledBuffers());
+
+        this.loops = new SelectorLoop[config.selectorThreads()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop();
+        }
+
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+    }
+
+    public void run() {
+        for (int i = 0; i < loops.length; i++) {
+            Thread.ofPlatform().name("selector-" + i).daemon(true).start(loops[i]);
+        }
+
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                System.out.println("Client connected: " + channel.getRemoteAddress());
+                channel.configureBlocking(false);
+
+                SelectorLoop loop = loops[nextLoop++ % loops.length];
+                NioClientHandler client = new NioClientHandler(
+                        channel,
+                        loop,
+                        router,
+                        outboundCapacity,
+                        overflowPolicy,
+                        maxInFlight,
+                        readBuffers,
+                        writeBuffers,
+                        workers
+                );
+                loop.execute(client::register);
+
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) System.out.println("Accept error: " + e.getMessage());
+            }
+        }
+    }
+
+    public void stop() {
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {
+        }
+        for (SelectorLoop loop : loops) {
+            loop.shutdown();
+        }
+        workers.shutdown();
+    }
+}
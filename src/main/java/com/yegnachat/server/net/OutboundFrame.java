@@ -0,0 +1,55 @@
+package com.yegnachat.server.net;
+
+import com.yegnachat.server.protocol.Frame;
+import com.yegnachat.server.protocol.Framing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A JSON frame encoded to UTF-8 once. The bytes are never modified after construction, so one
+ * instance can sit in the outbound queues of any number of recipients.
+ */
+public final class OutboundFrame {
+
+    private final Frame.Type type;
+    private final byte[] payload;
+
+    private OutboundFrame(Frame.Type type, byte[] payload) {
+        this.type = type;
+        this.payload = payload;
+    }
+
+    public static OutboundFrame json(String json) {
+        return new OutboundFrame(Frame.Type.JSON, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Takes ownership of the array, the caller must not touch it afterwards
+    public static OutboundFrame json(byte[] utf8) {
+        return new OutboundFrame(Frame.Type.JSON, utf8);
+    }
+
+    // A leading piece of a streamed document, see OutboundQueue.Stream
+    public static OutboundFrame chunk(byte[] utf8) {
+        return new OutboundFrame(Frame.Type.JSON_CHUNK, utf8);
+    }
+
+    public Frame.Type type() {
+        return type;
+    }
+
+    public int length() {
+        return payload.length;
+    }
+
+    // Read-only view for channel writes, each caller gets its own position
+    public ByteBuffer payload() {
+        return ByteBuffer.wrap(payload).asReadOnlyBuffer();
+    }
+
+    public void writeTo(OutputStream out, Framing framing) throws IOException {
+        framing.write(out, type, payload);
+    }
+}
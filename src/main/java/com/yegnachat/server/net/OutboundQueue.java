@@ -0,0 +1,286 @@
+package com.yegnachat.server.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of frames waiting to be written to one connection.
+ * Producers never block: when the queue is full the {@link OverflowPolicy} decides what happens.
+ * The one exception is {@link Stream}, whose producer waits for the writer to keep up.
+ */
+public class OutboundQueue {
+
+    public enum Result {
+        QUEUED,
+        COALESCED,
+        DROPPED,
+        OVERFLOW,
+        CLOSED
+    }
+
+    // Chunks a stream may have waiting before its producer blocks
+    private static final int STREAM_WINDOW = 4;
+    private static final long STREAM_STALL_TIMEOUT_MILLIS = 30_000;
+
+    private static final class Entry {
+        final String key;
+        final Stream stream;
+        OutboundFrame frame;
+
+        Entry(String key, OutboundFrame frame, Stream stream) {
+            this.key = key;
+            this.frame = frame;
+            this.stream = stream;
+        }
+    }
+
+    /**
+     * A document written as a run of chunks while it is still being produced. It holds one slot in
+     * the queue and nothing queued after it is written until the final chunk has gone out, so the
+     * chunks always reach the wire back to back.
+     */
+    public final class Stream {
+
+        private final ArrayDeque<OutboundFrame> chunks = new ArrayDeque<>();
+        private boolean finished;
+
+        private Stream() {
+        }
+
+        // Blocks while STREAM_WINDOW chunks are still waiting for the writer
+        public void write(OutboundFrame chunk) throws IOException {
+            add(chunk, false);
+        }
+
+        public void finish(OutboundFrame last) throws IOException {
+            add(last, true);
+        }
+
+        private void add(OutboundFrame frame, boolean last) throws IOException {
+            lock.lock();
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(STREAM_STALL_TIMEOUT_MILLIS);
+                while (!closed && !last && chunks.size() >= STREAM_WINDOW) {
+                    if (nanos <= 0) throw new SocketTimeoutException("Client stopped reading a streamed response");
+                    nanos = chunkTaken.awaitNanos(nanos);
+                }
+                if (closed) throw new EOFException("Connection closed during streamed response");
+                chunks.addLast(frame);
+                finished = last;
+                notEmpty.signal();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted during streamed response");
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ArrayDeque<Entry> frames = new ArrayDeque<>();
+    private final Map<String, Entry> pendingByKey = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition chunkTaken = lock.newCondition();
+
+    private boolean closed;
+    // Refusing new frames, but what is already queued still goes out
+    private boolean draining;
+    private long dropped;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    public Result offer(OutboundFrame frame) {
+        return offer(null, frame);
+    }
+
+    /**
+     * Queues a frame. Frames sharing a non-null key are merged under {@link OverflowPolicy#COALESCE}
+     * so only the latest one is written. Only pass a key for frames a newer one fully replaces.
+     */
+    public Result offer(String key, OutboundFrame frame) {
+        lock.lock();
+        try {
+            if (closed || draining) return Result.CLOSED;
+
+            if (policy == OverflowPolicy.COALESCE && key != null) {
+                Entry pending = pendingByKey.get(key);
+                if (pending != null) {
+                    pending.frame = frame;
+                    return Result.COALESCED;
+                }
+            }
+
+            return enqueue(new Entry(key, frame, null));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Stream newStream() {
+        return new Stream();
+    }
+
+    // Reserves the stream's place in the queue, its chunks are added through the stream itself
+    public Result offer(Stream stream) {
+        lock.lock();
+        try {
+            if (closed || draining) return Result.CLOSED;
+            return enqueue(new Entry(null, null, stream));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Result enqueue(Entry entry) {
+        if (frames.size() >= capacity) {
+            switch (policy) {
+                case DROP -> {
+                    dropped++;
+                    return Result.DROPPED;
+                }
+                case DISCONNECT -> {
+                    return Result.OVERFLOW;
+                }
+                case COALESCE -> {
+                    // Only keyed frames are replaceable, replies and streams are never dropped
+                    Entry oldest = oldestKeyed();
+                    if (oldest == null) return Result.OVERFLOW;
+                    frames.remove(oldest);
+                    pendingByKey.remove(oldest.key);
+                    dropped++;
+                }
+            }
+        }
+
+        frames.addLast(entry);
+        if (entry.key != null) pendingByKey.put(entry.key, entry);
+        notEmpty.signal();
+        return Result.QUEUED;
+    }
+
+    private Entry oldestKeyed() {
+        for (Entry entry : frames) {
+            if (entry.key != null) return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Blocks until a frame is available. Returns null once the queue is closed, or once it is
+     * draining and everything queued has been taken.
+     */
+    public OutboundFrame take() throws InterruptedException {
+        lock.lock();
+        try {
+            OutboundFrame frame;
+            while ((frame = next()) == null) {
+                if (closed || (draining && frames.isEmpty())) return null;
+                notEmpty.await();
+            }
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public OutboundFrame poll() {
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Head of the queue, or null when it is empty or a stream at the head has nothing ready yet
+    private OutboundFrame next() {
+        Entry head = frames.peekFirst();
+        if (head == null) return null;
+
+        if (head.stream == null) {
+            frames.pollFirst();
+            if (head.key != null) pendingByKey.remove(head.key);
+            return head.frame;
+        }
+
+        OutboundFrame chunk = head.stream.chunks.pollFirst();
+        if (chunk == null) return null;
+        if (head.stream.finished && head.stream.chunks.isEmpty()) {
+            frames.pollFirst();
+        }
+        chunkTaken.signalAll();
+        return chunk;
+    }
+
+    // True when there is nothing the writer could write right now
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            Entry head = frames.peekFirst();
+            return head == null || (head.stream != null && head.stream.chunks.isEmpty());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True once the queue is draining and everything in it has been taken
+    public boolean isDrained() {
+        lock.lock();
+        try {
+            return draining && frames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long droppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting frames but keeps the ones already queued, including the rest of a stream that
+     * has started, for the writer to send before the connection closes.
+     */
+    public void drain() {
+        lock.lock();
+        try {
+            draining = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            frames.clear();
+            pendingByKey.clear();
+            notEmpty.signalAll();
+            chunkTaken.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.yegnachat.server.net;
+
+/**
+ * What a connection does when its outbound queue is full.
+ */
+public enum OverflowPolicy {
+
+    // Discard the new frame, keep everything already queued
+    DROP,
+
+    // Treat the receiver as a slow consumer and close its connection
+    DISCONNECT,
+
+    // Replace a pending frame with the same coalesce key, otherwise discard the oldest keyed frame.
+    // Disconnects like DISCONNECT when only replies and other unkeyed frames are waiting
+    COALESCE;
+
+    public static OverflowPolicy parse(String value, OverflowPolicy defaultValue) {
+        if (value == null || value.isBlank()) return defaultValue;
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+}
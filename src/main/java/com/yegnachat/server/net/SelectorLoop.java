@@ -0,0 +1,78 @@
+package com.yegnachat.server.net;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread. Every piece of NioClientHandler state that touches buffers or the
+ * selection key is only changed on this thread; other threads go through {@link #execute}.
+ */
+class SelectorLoop implements Runnable {
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    SelectorLoop() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    NioClientHandler client = (NioClientHandler) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) client.onReadable();
+                        if (key.isValid() && key.isWritable()) client.onWritable();
+                    } catch (IOException | CancelledKeyException e) {
+                        client.close();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) System.out.println("Selector loop stopped: " + e.getMessage());
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.yegnachat.server.net;
+
+import com.yegnachat.server.ClientHandler;
+import com.yegnachat.server.MessageRouter;
+import com.yegnachat.server.protocol.Frame;
+import com.yegnachat.server.protocol.FrameReader;
+import com.yegnachat.server.protocol.Framing;
+import com.yegnachat.server.util.BufferPool;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Blocking transport: one virtual thread reads and dispatches requests, a second one drains the
+ * outbound queue.
+ */
+public class SocketClientHandler extends ClientHandler implements Runnable {
+
+    private final Socket socket;
+    private final FrameReader reader;
+    private final OutputStream out;
+    private volatile Framing framing = Framing.LINE;
+
+    public SocketClientHandler(Socket socket, MessageRouter router, int outboundCapacity,
+                               OverflowPolicy overflowPolicy, int maxInFlight, BufferPool readBuffers)
+            throws IOException {
+        super(router, outboundCapacity, overflowPolicy, maxInFlight);
+        this.socket = socket;
+        this.reader = new FrameReader(socket.getInputStream(), readBuffers);
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    @Override
+    public void run() {
+        try {
+            Framing negotiated = reader.negotiate();
+            if (negotiated == null) return;
+
+            if (negotiated == Framing.LENGTH_PREFIXED) {
+                // Echo the preamble so the client knows this server speaks length prefixed frames
+                out.write(Framing.MAGIC);
+                out.flush();
+            }
+            framing = negotiated;
+            Thread.ofVirtual().name("writer-" + socket.getPort()).start(this::writeLoop);
+
+            Frame frame;
+            while ((frame = reader.read()) != null) {
+                // Leftover chunks of an upload the router gave up on
+                if (frame.type() != Frame.Type.JSON) continue;
+
+                handleFrame(frame.json());
+            }
+
+        } catch (IOException ignored) {
+        } finally {
+            close();
+            // Released here, not in close(), because only this thread touches the read buffer
+            reader.release();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            OutboundFrame frame;
+            while ((frame = outbound.take()) != null) {
+                frame.writeTo(out, framing);
+                // Only flush once the queue is drained so bursts go out in as few writes as possible
+                if (outbound.isEmpty()) {
+                    out.flush();
+                }
+            }
+        } catch (IOException | InterruptedException ignored) {
+        } finally {
+            close();
+        }
+    }
+
+    // Only valid on the reading thread, while routing the frame that announced the upload
+    @Override
+    public InputStream readBinary(long size) {
+        return reader.binary(size);
+    }
+
+    @Override
+    protected String remoteAddress() {
+        return String.valueOf(socket.getInetAddress());
+    }
+
+    @Override
+    protected void closeTransport() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
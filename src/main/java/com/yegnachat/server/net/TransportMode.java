@@ -0,0 +1,22 @@
+package com.yegnachat.server.net;
+
+/**
+ * How ChatServer accepts and serves connections.
+ */
+public enum TransportMode {
+
+    // ServerSocket, one virtual thread for reading and one for writing per client
+    BLOCKING,
+
+    // ServerSocketChannel served by a few selector loops, routing on worker threads
+    NIO;
+
+    public static TransportMode parse(String value, TransportMode defaultValue) {
+        if (value == null || value.isBlank()) return defaultValue;
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.yegnachat.server.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One decoded inbound frame. For binary frames {@code data} is a view that is only valid
+ * until the decoder is asked for the next frame.
+ */
+public record Frame(Type type, String json, ByteBuffer data) {
+
+    public enum Type {
+        JSON((byte) 1),
+        BINARY((byte) 2),
+        // Server to client only: a piece of a JSON document, completed by the next JSON frame
+        JSON_CHUNK((byte) 3);
+
+        private final byte code;
+
+        Type(byte code) {
+            this.code = code;
+        }
+
+        public byte code() {
+            return code;
+        }
+
+        public static Type fromCode(byte code) {
+            for (Type t : values()) {
+                if (t.code == code) return t;
+            }
+            return null;
+        }
+    }
+
+    public static Frame json(String json) {
+        return new Frame(Type.JSON, json, null);
+    }
+
+    public static Frame binary(ByteBuffer data) {
+        return new Frame(Type.BINARY, null, data);
+    }
+}
@@ -0,0 +1,188 @@
+package com.yegnachat.server.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental decoder for both framings. It works on a ByteBuffer in read mode, consumes
+ * what it can and returns null when more bytes are needed, so the same code serves blocking
+ * streams and non-blocking channels.
+ */
+public class FrameDecoder {
+
+    // Spill buffers bigger than this are not kept around between frames
+    private static final int RETAINED_SPILL_SIZE = 64 * 1024;
+
+    private Framing framing;
+
+    // Bytes of a line or payload that spans several buffer refills
+    private byte[] spill;
+    private int spillLength;
+
+    // LENGTH_PREFIXED: header already read, payload still pending
+    private int payloadLength = -1;
+    private Frame.Type payloadType;
+
+    // LINE: raw bytes that follow a JSON line (image upload) and must not be parsed as lines
+    private long rawRemaining;
+
+    public Framing framing() {
+        return framing;
+    }
+
+    /**
+     * Detects the framing from the first bytes of the connection. Returns null until enough
+     * bytes are available.
+     */
+    public Framing negotiate(ByteBuffer in) throws ProtocolException {
+        if (framing != null) return framing;
+        if (!in.hasRemaining()) return null;
+
+        int start = in.position();
+        if (in.get(start) != Framing.MAGIC[0]) {
+            framing = Framing.LINE;
+            return framing;
+        }
+        if (in.remaining() < Framing.MAGIC.length) return null;
+        for (int i = 1; i < Framing.MAGIC.length; i++) {
+            if (in.get(start + i) != Framing.MAGIC[i]) {
+                throw new ProtocolException("Unknown framing preamble");
+            }
+        }
+        in.position(start + Framing.MAGIC.length);
+        framing = Framing.LENGTH_PREFIXED;
+        return framing;
+    }
+
+    /**
+     * Announces that the next {@code size} bytes are raw binary. Only meaningful for LINE framing,
+     * length prefixed clients send binary frames instead.
+     */
+    public void expectRaw(long size) {
+        if (framing == Framing.LINE) {
+            rawRemaining = size;
+        }
+    }
+
+    public Frame decode(ByteBuffer in) throws ProtocolException {
+        if (framing == null && negotiate(in) == null) return null;
+        return framing == Framing.LINE ? decodeLine(in) : decodeLengthPrefixed(in);
+    }
+
+    private Frame decodeLine(ByteBuffer in) throws ProtocolException {
+        if (rawRemaining > 0) {
+            if (!in.hasRemaining()) return null;
+            int n = (int) Math.min(rawRemaining, in.remaining());
+            int start = in.position();
+            in.position(start + n);
+            rawRemaining -= n;
+            return Frame.binary(in.slice(start, n));
+        }
+
+        while (true) {
+            int start = in.position();
+            int limit = in.limit();
+            int newline = -1;
+            for (int i = start; i < limit; i++) {
+                if (in.get(i) == '\n') {
+                    newline = i;
+                    break;
+                }
+            }
+
+            if (newline < 0) {
+                appendSpill(in, start, limit - start, Framing.MAX_FRAME_SIZE);
+                in.position(limit);
+                return null;
+            }
+
+            in.position(newline + 1);
+            String line;
+            if (spillLength == 0) {
+                int length = newline - start;
+                if (length > 0 && in.get(newline - 1) == '\r') length--;
+                line = utf8(in, start, length);
+            } else {
+                appendSpill(in, start, newline - start, Framing.MAX_FRAME_SIZE);
+                int length = spillLength;
+                if (spill[length - 1] == '\r') length--;
+                line = new String(spill, 0, length, StandardCharsets.UTF_8);
+                resetSpill();
+            }
+
+            // Skip keep-alive blank lines
+            if (!line.isBlank()) return Frame.json(line);
+        }
+    }
+
+    private Frame decodeLengthPrefixed(ByteBuffer in) throws ProtocolException {
+        if (payloadLength < 0) {
+            if (in.remaining() < Framing.HEADER_SIZE) return null;
+            int length = in.getInt();
+            byte code = in.get();
+            Frame.Type type = Frame.Type.fromCode(code);
+            if (type == null || type == Frame.Type.JSON_CHUNK) {
+                throw new ProtocolException("Unexpected frame type: " + code);
+            }
+            if (length < 0 || length > Framing.MAX_FRAME_SIZE) {
+                throw new ProtocolException("Frame too large: " + length);
+            }
+            payloadLength = length;
+            payloadType = type;
+        }
+
+        // Fast path: the whole payload is already buffered, decode it in place
+        if (spillLength == 0 && in.remaining() >= payloadLength) {
+            int start = in.position();
+            in.position(start + payloadLength);
+            Frame frame = payloadType == Frame.Type.JSON
+                    ? Frame.json(utf8(in, start, payloadLength))
+                    : Frame.binary(in.slice(start, payloadLength));
+            payloadLength = -1;
+            return frame;
+        }
+
+        int n = Math.min(in.remaining(), payloadLength - spillLength);
+        appendSpill(in, in.position(), n, payloadLength);
+        in.position(in.position() + n);
+        if (spillLength < payloadLength) return null;
+
+        Frame frame = payloadType == Frame.Type.JSON
+                ? Frame.json(new String(spill, 0, spillLength, StandardCharsets.UTF_8))
+                : Frame.binary(ByteBuffer.wrap(spill, 0, spillLength));
+        payloadLength = -1;
+        resetSpill();
+        return frame;
+    }
+
+    private void appendSpill(ByteBuffer in, int index, int length, int maxSize) throws ProtocolException {
+        if (length == 0) return;
+        int needed = spillLength + length;
+        if (needed > maxSize) throw new ProtocolException("Frame too large");
+        if (spill == null || spill.length < needed) {
+            byte[] grown = new byte[Math.min(maxSize, Math.max(needed, spill == null ? 1024 : spill.length * 2))];
+            if (spillLength > 0) System.arraycopy(spill, 0, grown, 0, spillLength);
+            spill = grown;
+        }
+        in.get(index, spill, spillLength, length);
+        spillLength = needed;
+    }
+
+    // Keep a modest spill array for reuse, let big ones go
+    private void resetSpill() {
+        spillLength = 0;
+        if (spill != null && spill.length > RETAINED_SPILL_SIZE) {
+            spill = null;
+        }
+    }
+
+    private static String utf8(ByteBuffer in, int index, int length) {
+        if (in.hasArray()) {
+            return new String(in.array(), in.arrayOffset() + index, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        in.get(index, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,112 @@
+package com.yegnachat.server.protocol;
+
+import com.yegnachat.server.util.BufferPool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Blocking frame reader over a socket stream. All reads go through one pooled buffer, so bytes
+ * read ahead of a binary upload are handed to the upload instead of being lost.
+ */
+public class FrameReader {
+
+    private final InputStream in;
+    private final BufferPool pool;
+    private final FrameDecoder decoder = new FrameDecoder();
+    private ByteBuffer buffer;
+
+    public FrameReader(InputStream in, BufferPool pool) {
+        this.in = in;
+        this.pool = pool;
+        this.buffer = pool.acquire();
+        this.buffer.limit(0);
+    }
+
+    /**
+     * Blocks until the client has picked its framing. Returns null if it disconnects first.
+     */
+    public Framing negotiate() throws IOException {
+        while (decoder.negotiate(buffer) == null) {
+            if (!fill()) return null;
+        }
+        return decoder.framing();
+    }
+
+    // Returns null at end of stream
+    public Frame read() throws IOException {
+        while (true) {
+            Frame frame = decoder.decode(buffer);
+            if (frame != null) return frame;
+            if (!fill()) return null;
+        }
+    }
+
+    /**
+     * Stream over the next {@code size} bytes of binary payload: raw bytes after the current line
+     * for LINE clients, a run of binary frames for LENGTH_PREFIXED clients.
+     */
+    public InputStream binary(long size) {
+        decoder.expectRaw(size);
+        return new BinaryInputStream(size);
+    }
+
+    public void release() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (buffer == null) return false;
+        buffer.compact();
+        int n = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if (n > 0) buffer.position(buffer.position() + n);
+        buffer.flip();
+        return n >= 0;
+    }
+
+    private class BinaryInputStream extends InputStream {
+
+        private long remaining;
+        private ByteBuffer chunk;
+
+        BinaryInputStream(long size) {
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (chunk == null || !chunk.hasRemaining()) {
+                if (remaining == 0) return -1;
+                nextChunk();
+            }
+            int n = Math.min(len, chunk.remaining());
+            chunk.get(b, off, n);
+            return n;
+        }
+
+        private void nextChunk() throws IOException {
+            Frame frame = FrameReader.this.read();
+            if (frame == null) throw new EOFException("Connection closed during binary transfer");
+            if (frame.type() != Frame.Type.BINARY) throw new ProtocolException("Expected binary frame");
+            if (frame.data().remaining() > remaining) {
+                throw new ProtocolException("Binary frame exceeds declared size");
+            }
+            chunk = frame.data();
+            remaining -= chunk.remaining();
+        }
+    }
+}
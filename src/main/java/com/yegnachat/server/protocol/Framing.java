@@ -0,0 +1,61 @@
+package com.yegnachat.server.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Wire framing of a connection, picked by the client with its very first bytes.
+ *
+ * LINE: one JSON document per line, raw image bytes follow the create_post line (legacy clients).
+ * LENGTH_PREFIXED: the client opens with {@link #MAGIC} and every frame in both directions is
+ * [4 byte big-endian payload length][1 byte frame type][payload].
+ *
+ * A large response may be split into JSON_CHUNK pieces. On a line connection the pieces are simply
+ * the same line without its newline, so legacy clients see one long line.
+ */
+public enum Framing {
+    LINE,
+    LENGTH_PREFIXED;
+
+    public static final byte[] MAGIC = {'Y', 'C', 'F', 1};
+    public static final int HEADER_SIZE = 5;
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    public void write(OutputStream out, Frame.Type type, byte[] payload) throws IOException {
+        if (this == LINE) {
+            out.write(payload);
+            if (type != Frame.Type.JSON_CHUNK) out.write('\n');
+            return;
+        }
+        int length = payload.length;
+        out.write(length >>> 24);
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(type.code());
+        out.write(payload);
+    }
+
+    // Bytes written in front of the payload by putHeader
+    public int headerSize() {
+        return this == LINE ? 0 : HEADER_SIZE;
+    }
+
+    // Bytes written after the payload by putTrailer
+    public int trailerSize(Frame.Type type) {
+        return this == LINE && type != Frame.Type.JSON_CHUNK ? 1 : 0;
+    }
+
+    public void putHeader(ByteBuffer dst, Frame.Type type, int length) {
+        if (this == LENGTH_PREFIXED) {
+            dst.putInt(length).put(type.code());
+        }
+    }
+
+    public void putTrailer(ByteBuffer dst) {
+        if (this == LINE) {
+            dst.put((byte) '\n');
+        }
+    }
+}
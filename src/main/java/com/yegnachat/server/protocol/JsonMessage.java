@@ -1,9 +1,16 @@
 package com.yegnachat.server.protocol;
 
+import com.google.gson.JsonElement;
+import com.google.gson.annotations.SerializedName;
+
 public class JsonMessage {
     private String type;
     private Object payload;
 
+    // Optional, copied from the request to its response so pipelined replies can be matched
+    @SerializedName("request_id")
+    private JsonElement requestId;
+
     public JsonMessage() {}
 
     public JsonMessage(String type, Object payload) {
@@ -16,4 +23,7 @@ public class JsonMessage {
 
     public Object getPayload() { return payload; }
     public void setPayload(Object payload) { this.payload = payload; }
+
+    public JsonElement getRequestId() { return requestId; }
+    public void setRequestId(JsonElement requestId) { this.requestId = requestId; }
 }
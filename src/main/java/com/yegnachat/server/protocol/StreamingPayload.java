@@ -0,0 +1,43 @@
+package com.yegnachat.server.protocol;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * A payload value that writes itself while the response is being serialized instead of being
+ * built up front, e.g. rows read straight off a ResultSet. It may sit anywhere inside a
+ * JsonMessage payload and is closed once written.
+ *
+ * Implementations must be named classes, Gson serializes anonymous and local classes as null.
+ */
+public interface StreamingPayload extends AutoCloseable {
+
+    void writeTo(JsonWriter out) throws IOException;
+
+    @Override
+    void close();
+
+    /**
+     * Register with {@code GsonBuilder.registerTypeHierarchyAdapter(StreamingPayload.class, ...)}.
+     */
+    TypeAdapter<StreamingPayload> ADAPTER = new TypeAdapter<>() {
+        @Override
+        public void write(JsonWriter out, StreamingPayload value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
+            try (value) {
+                value.writeTo(out);
+            }
+        }
+
+        @Override
+        public StreamingPayload read(JsonReader in) {
+            throw new UnsupportedOperationException("StreamingPayload is write only");
+        }
+    };
+}
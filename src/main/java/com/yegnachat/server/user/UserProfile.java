@@ -0,0 +1,7 @@
+package com.yegnachat.server.user;
+
+/**
+ * The public part of a user, what other users get to see. Kept in UserService's cache.
+ */
+public record UserProfile(int id, String username, String avatarUrl, String bio) {
+}
@@ -1,24 +1,119 @@
 package com.yegnachat.server.user;
 
 import com.yegnachat.server.DatabaseService;
+import com.yegnachat.server.util.ExpiringLruCache;
+import com.yegnachat.server.util.Metrics;
 import com.yegnachat.server.util.PasswordUtil;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class UserService {
 
+    // Ids per IN (...) when loading profiles the cache doesn't have
+    private static final int PROFILE_BATCH = 500;
+
+    private static final int SEARCH_RESULTS = 20;
+
     private final DatabaseService db;
+    private final ExpiringLruCache<Integer, UserProfile> profiles;
+
+    // searchUsers reads users directly until this has been loaded
+    private final UsernameIndex usernames = new UsernameIndex();
+    private volatile boolean usernamesLoaded;
 
-    public UserService(DatabaseService db) {
+    public UserService(DatabaseService db, int profileCacheSize, int profileCacheTtlSeconds) {
         this.db = db;
+        this.profiles = new ExpiringLruCache<>(profileCacheSize, profileCacheTtlSeconds, TimeUnit.SECONDS);
+
+        Metrics.register("user_profile_cache_hits", profiles::hits);
+        Metrics.register("user_profile_cache_misses", profiles::misses);
+        Metrics.register("user_profile_cache_size", profiles::size);
+        Metrics.register("username_index_size", usernames::size);
+    }
+
+    // Reads every username into the search index, once at startup
+    public void loadUsernameIndex() {
+        String sql = "SELECT id, username FROM users";
+        int[] ids = new int[1024];
+        String[] names = new String[1024];
+        int count = 0;
+        try (Connection conn = db.getConnection();
+             Statement st = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            st.setFetchSize(Integer.MIN_VALUE);
+            ResultSet rs = st.executeQuery(sql);
+            while (rs.next()) {
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2);
+                    names = Arrays.copyOf(names, count * 2);
+                }
+                ids[count] = rs.getInt(1);
+                names[count] = rs.getString(2);
+                count++;
+            }
+        } catch (SQLException e) {
+            System.err.println("Loading the username index failed, searching the database instead: " + e.getMessage());
+            return;
+        }
+        usernames.addAll(Arrays.copyOf(ids, count), Arrays.copyOf(names, count));
+        usernamesLoaded = true;
+    }
+
+    // Cached, null when there is no such user
+    public UserProfile getProfile(int id) throws SQLException {
+        return profiles.get(id, this::loadProfiles);
+    }
+
+    // Cached profiles of the given users, users that don't exist are left out
+    public Map<Integer, UserProfile> getProfiles(Collection<Integer> ids) throws SQLException {
+        return profiles.getAll(ids, this::loadProfiles);
+    }
+
+    // Must be called after anything that changes a user's username, avatar or bio
+    public void invalidateProfile(int id) {
+        profiles.invalidate(id);
     }
 
+    private Map<Integer, UserProfile> loadProfiles(Collection<Integer> ids) throws SQLException {
+        Map<Integer, UserProfile> loaded = new HashMap<>();
+        List<Integer> all = new ArrayList<>(ids);
+
+        try (Connection conn = db.getConnection()) {
+            for (int from = 0; from < all.size(); from += PROFILE_BATCH) {
+                List<Integer> batch = all.subList(from, Math.min(all.size(), from + PROFILE_BATCH));
+                String sql = "SELECT id, username, avatar_url, bio FROM users WHERE id IN ("
+                        + String.join(", ", Collections.nCopies(batch.size(), "?")) + ")";
+
+                try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        ps.setInt(i + 1, batch.get(i));
+                    }
+                    ResultSet rs = ps.executeQuery();
+                    while (rs.next()) {
+                        UserProfile profile = new UserProfile(
+                                rs.getInt("id"),
+                                rs.getString("username"),
+                                rs.getString("avatar_url"),
+                                rs.getString("bio")
+                        );
+                        loaded.put(profile.id(), profile);
+                    }
+                }
+            }
+        }
+        return loaded;
+    }
 
     public User getById(int id) throws SQLException {
         String sql = "SELECT * FROM users WHERE id = ?";
@@ -71,12 +166,17 @@ public class UserService {
                 VALUES (?, ?, ?, ?)
             """;
 
-            try (PreparedStatement ps = conn.prepareStatement(insertSql)) {
+            try (PreparedStatement ps = conn.prepareStatement(insertSql, Statement.RETURN_GENERATED_KEYS)) {
                 ps.setString(1, username);
                 ps.setString(2, PasswordUtil.hashPassword(password));
                 ps.setString(3, avatarUrl);
                 ps.setString(4, bio);
-                return ps.executeUpdate() == 1;
+                if (ps.executeUpdate() != 1) return false;
+
+                ResultSet keys = ps.getGeneratedKeys();
+                keys.next();
+                usernames.add(keys.getInt(1), username);
+                return true;
             }
         }
     }
@@ -116,6 +216,8 @@ public class UserService {
             ps.setString(1, bio);
             ps.setInt(2, userId);
             return ps.executeUpdate() == 1;
+        } finally {
+            invalidateProfile(userId);
         }
     }
 
@@ -131,7 +233,28 @@ public class UserService {
     }
 
 
+    // Best matches first: usernames starting with the query, then the shortest containing it
     public List<User> searchUsers(String query, int excludeUserId) throws SQLException {
+        if (!usernamesLoaded) return searchUsersInDatabase(query, excludeUserId);
+
+        int[] ids = usernames.search(query, SEARCH_RESULTS, excludeUserId);
+        Map<Integer, UserProfile> found = getProfiles(Arrays.stream(ids).boxed().toList());
+
+        List<User> users = new ArrayList<>();
+        for (int id : ids) {
+            UserProfile profile = found.get(id);
+            if (profile == null) continue;
+            User u = new User();
+            u.setId(profile.id());
+            u.setUsername(profile.username());
+            u.setAvatarUrl(profile.avatarUrl());
+            u.setBio(profile.bio());
+            users.add(u);
+        }
+        return users;
+    }
+
+    private List<User> searchUsersInDatabase(String query, int excludeUserId) throws SQLException {
         List<User> users = new ArrayList<>();
         String sql = """
             SELECT id, username, avatar_url, bio
@@ -160,65 +283,6 @@ public class UserService {
         return users;
     }
 
-    public List<User> listUsersWithMessages(int userId) throws SQLException {
-        List<User> users = new ArrayList<>();
-        String sql = """
-            SELECT DISTINCT u.*
-            FROM users u
-            JOIN messages m
-              ON (m.sender_id = ? AND m.receiver_id = u.id)
-              OR (m.receiver_id = ? AND m.sender_id = u.id)
-            WHERE u.id != ?
-        """;
-
-        try (Connection conn = db.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-
-            ps.setInt(1, userId);
-            ps.setInt(2, userId);
-            ps.setInt(3, userId);
-
-            ResultSet rs = ps.executeQuery();
-            while (rs.next()) {
-                User u = new User();
-                u.setId(rs.getInt("id"));
-                u.setUsername(rs.getString("username"));
-                u.setAvatarUrl(rs.getString("avatar_url"));
-                u.setBio(rs.getString("bio"));
-                users.add(u);
-            }
-        }
-        return users;
-    }
-
-    public List<Map<String, Object>> listGroupsForUser(int userId) throws SQLException {
-        List<Map<String, Object>> groups = new ArrayList<>();
-        String sql = """
-            SELECT g.id, g.name, g.avatar_url, g.about
-            FROM chat_groups g
-            JOIN group_members gm ON g.id = gm.group_id
-            WHERE gm.user_id = ?
-        """;
-
-        try (Connection conn = db.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-
-            ps.setInt(1, userId);
-            ResultSet rs = ps.executeQuery();
-
-            while (rs.next()) {
-                groups.add(Map.of(
-                        "id", rs.getInt("id"),
-                        "name", rs.getString("name"),
-                        "avatar_url", rs.getString("avatar_url") != null ? rs.getString("avatar_url") : "",
-                        "about", rs.getString("about") != null ? rs.getString("about") : ""
-                ));
-            }
-        }
-        return groups;
-    }
-
-
     public boolean followUser(int followerId, int targetId) throws SQLException {
         String sql = """
             INSERT INTO user_follows (follower_id, target_id)
@@ -252,6 +316,8 @@ public class UserService {
             ps.setString(1, avatarUrl);
             ps.setInt(2, userId);
             return ps.executeUpdate() == 1;
+        } finally {
+            invalidateProfile(userId);
         }
     }
 
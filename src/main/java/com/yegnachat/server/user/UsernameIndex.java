@@ -0,0 +1,231 @@
+package com.yegnachat.server.user;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/**
+ * Lowercase usernames searchable by substring, like LIKE '%q%' but without reading users.
+ *
+ * Usernames starting with the query come first, in alphabetical order, so an exact match leads;
+ * they are a range of the sorted array found by binary search. The rest, shorter usernames first,
+ * are found through trigrams: the users whose names contain every three-letter piece of the query,
+ * then checked for the whole query. Each trigram's users are kept in that same order, so the walk
+ * stops at the first few that match. Queries under three letters have no trigram and are matched
+ * by scanning until enough are found.
+ */
+public class UsernameIndex {
+
+    // Slots of names containing one trigram, closest first
+    private final class Postings {
+        int[] slots = new int[4];
+        int size;
+
+        void append(int slot) {
+            if (size == slots.length) slots = Arrays.copyOf(slots, size * 2);
+            slots[size++] = slot;
+        }
+
+        void insert(int slot) {
+            int at = -search(slot) - 1;
+            append(slot);
+            System.arraycopy(slots, at, slots, at + 1, size - 1 - at);
+            slots[at] = slot;
+        }
+
+        boolean contains(int slot) {
+            return search(slot) >= 0;
+        }
+
+        private int search(int slot) {
+            int lo = 0;
+            int hi = size - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = compareClosest(slots[mid], slot);
+                if (cmp < 0) {
+                    lo = mid + 1;
+                } else if (cmp > 0) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(lo + 1);
+        }
+    }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // By slot, in the order users were added
+    private String[] names = new String[1024];
+    private int[] ids = new int[1024];
+    private int size;
+
+    // Slots ordered by name
+    private int[] sorted = new int[1024];
+
+    private final Map<Long, Postings> trigrams = new HashMap<>();
+
+    public void add(int userId, String username) {
+        lock.writeLock().lock();
+        try {
+            int slot = append(userId, username);
+            for (long trigram : trigrams(names[slot])) {
+                trigrams.computeIfAbsent(trigram, t -> new Postings()).insert(slot);
+            }
+            // The new slot isn't in sorted yet
+            int at = lowerBound(names[slot], size - 1);
+            System.arraycopy(sorted, at, sorted, at + 1, size - 1 - at);
+            sorted[at] = slot;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Adds many users and sorts once, instead of inserting them one by one
+    public void addAll(int[] userIds, String[] usernames) {
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < userIds.length; i++) {
+                append(userIds[i], usernames[i]);
+            }
+            sorted = IntStream.range(0, size).boxed()
+                    .sorted(Comparator.comparing(slot -> names[slot]))
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+            sorted = Arrays.copyOf(sorted, names.length);
+
+            // Appending in closest first order leaves every trigram's postings sorted
+            trigrams.clear();
+            int[] closest = IntStream.range(0, size).boxed()
+                    .sorted(this::compareClosest)
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+            for (int slot : closest) {
+                for (long trigram : trigrams(names[slot])) {
+                    trigrams.computeIfAbsent(trigram, t -> new Postings()).append(slot);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int append(int userId, String username) {
+        if (size == names.length) {
+            int capacity = size + (size >> 1);
+            names = Arrays.copyOf(names, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+            sorted = Arrays.copyOf(sorted, capacity);
+        }
+        String name = username.toLowerCase(Locale.ROOT);
+        int slot = size++;
+        names[slot] = name;
+        ids[slot] = userId;
+        return slot;
+    }
+
+    // Up to limit user ids whose username contains the query, best match first
+    public int[] search(String query, int limit, int excludeUserId) {
+        String q = query.toLowerCase(Locale.ROOT);
+        int[] found = new int[limit];
+        int count = 0;
+
+        lock.readLock().lock();
+        try {
+            for (int i = lowerBound(q, size); i < size && count < limit; i++) {
+                int slot = sorted[i];
+                if (!names[slot].startsWith(q)) break;
+                if (ids[slot] != excludeUserId) found[count++] = ids[slot];
+            }
+            if (count == limit) return found;
+
+            if (q.length() < 3) {
+                for (int slot = 0; slot < size && count < limit; slot++) {
+                    if (matchesInside(slot, q, excludeUserId)) found[count++] = ids[slot];
+                }
+                return Arrays.copyOf(found, count);
+            }
+
+            int[] inside = closestInside(q, limit - count, excludeUserId);
+            System.arraycopy(inside, 0, found, count, inside.length);
+            return Arrays.copyOf(found, count + inside.length);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The closest wanted names containing q other than at the start
+    private int[] closestInside(String q, int wanted, int excludeUserId) {
+        long[] grams = trigrams(q);
+        Postings[] lists = new Postings[grams.length];
+        for (int i = 0; i < grams.length; i++) {
+            lists[i] = trigrams.get(grams[i]);
+            if (lists[i] == null) return new int[0];
+        }
+        Arrays.sort(lists, Comparator.comparingInt(p -> p.size));
+
+        int[] found = new int[wanted];
+        int count = 0;
+        Postings shortest = lists[0];
+        candidates:
+        for (int i = 0; i < shortest.size && count < wanted; i++) {
+            int slot = shortest.slots[i];
+            for (int j = 1; j < lists.length; j++) {
+                if (!lists[j].contains(slot)) continue candidates;
+            }
+            if (matchesInside(slot, q, excludeUserId)) found[count++] = ids[slot];
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    private boolean matchesInside(int slot, String q, int excludeUserId) {
+        String name = names[slot];
+        return ids[slot] != excludeUserId && !name.startsWith(q) && name.contains(q);
+    }
+
+    // Shorter names first, then alphabetical; names are unique, so only a slot equals itself
+    private int compareClosest(int a, int b) {
+        int cmp = Integer.compare(names[a].length(), names[b].length());
+        return cmp != 0 ? cmp : names[a].compareTo(names[b]);
+    }
+
+    // Position of the first name not before key among the first count sorted slots
+    private int lowerBound(String key, int count) {
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (names[sorted[mid]].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static long[] trigrams(String s) {
+        if (s.length() < 3) return new long[0];
+        long[] grams = new long[s.length() - 2];
+        for (int i = 0; i < grams.length; i++) {
+            grams[i] = ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+        }
+        return Arrays.stream(grams).distinct().toArray();
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
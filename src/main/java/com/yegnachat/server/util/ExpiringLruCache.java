@@ -0,0 +1,135 @@
+package com.yegnachat.server.util;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded cache whose entries also expire after a fixed time. Misses are loaded together
+ * through one {@link BatchLoader} call; keys the loader doesn't return are not cached.
+ */
+public class ExpiringLruCache<K, V> {
+
+    @FunctionalInterface
+    public interface BatchLoader<K, V> {
+        Map<K, V> load(Collection<K> keys) throws SQLException;
+    }
+
+    private record Entry<V>(V value, long expiresAt) {}
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final LinkedHashMap<K, Entry<V>> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // Bumped by every invalidation, a load that overlapped one doesn't store what it read
+    private long invalidations;
+
+    public ExpiringLruCache(int maxSize, long ttl, TimeUnit unit) {
+        this.maxSize = Math.max(1, maxSize);
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > ExpiringLruCache.this.maxSize;
+            }
+        };
+    }
+
+    public V get(K key, BatchLoader<K, V> loader) throws SQLException {
+        return getAll(List.of(key), loader).get(key);
+    }
+
+    public Map<K, V> getAll(Collection<K> keys, BatchLoader<K, V> loader) throws SQLException {
+        Map<K, V> found = new HashMap<>();
+        Set<K> missing = new LinkedHashSet<>();
+        long generation;
+
+        synchronized (entries) {
+            long now = System.nanoTime();
+            for (K key : keys) {
+                if (found.containsKey(key) || missing.contains(key)) continue;
+                Entry<V> entry = entries.get(key);
+                if (entry != null && entry.expiresAt() - now > 0) {
+                    found.put(key, entry.value());
+                } else {
+                    if (entry != null) entries.remove(key);
+                    missing.add(key);
+                }
+            }
+            generation = invalidations;
+        }
+        hits.addAndGet(found.size());
+        misses.addAndGet(missing.size());
+        if (missing.isEmpty()) return found;
+
+        Map<K, V> loaded = loader.load(missing);
+        found.putAll(loaded);
+
+        synchronized (entries) {
+            if (generation == invalidations) {
+                long expiresAt = System.nanoTime() + ttlNanos;
+                loaded.forEach((key, value) -> entries.put(key, new Entry<>(value, expiresAt)));
+            }
+        }
+        return found;
+    }
+
+    // The live value without loading anything, or null
+    public V getIfPresent(K key) {
+        V value = null;
+        synchronized (entries) {
+            Entry<V> entry = entries.get(key);
+            if (entry != null && entry.expiresAt() - System.nanoTime() > 0) {
+                value = entry.value();
+            } else if (entry != null) {
+                entries.remove(key);
+            }
+        }
+        (value != null ? hits : misses).incrementAndGet();
+        return value;
+    }
+
+    // Like getIfPresent, but for the cache's own bookkeeping: not counted as a hit or miss
+    public V peek(K key) {
+        synchronized (entries) {
+            Entry<V> entry = entries.get(key);
+            return entry != null && entry.expiresAt() - System.nanoTime() > 0 ? entry.value() : null;
+        }
+    }
+
+    public void put(K key, V value) {
+        synchronized (entries) {
+            entries.put(key, new Entry<>(value, System.nanoTime() + ttlNanos));
+        }
+    }
+
+    public void invalidate(K key) {
+        synchronized (entries) {
+            entries.remove(key);
+            invalidations++;
+        }
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.yegnachat.server.util;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
+import com.yegnachat.server.DatabaseService;
+import com.yegnachat.server.protocol.StreamingPayload;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A query result written as a JSON array, one element per row, while the response is sent.
+ * The query runs in {@link #open} so SQL errors still surface to the handler.
+ *
+ * Most results are small, so the first rows are read into memory right away and when that is all
+ * of them the connection goes back to the pool before anything is written. Only a larger result
+ * keeps its connection, from the separate streaming pool, until the array has been written and
+ * the stream is closed. Each client may have only one such query open at a time, see StreamSlot.
+ */
+public final class JsonRowStream implements StreamingPayload {
+
+    @FunctionalInterface
+    public interface Binder {
+        void bind(PreparedStatement ps) throws SQLException;
+    }
+
+    @FunctionalInterface
+    public interface RowWriter {
+        void write(ResultSet rs, JsonWriter out) throws SQLException, IOException;
+    }
+
+    // JSON read ahead before a result counts as large and is streamed instead
+    private static final int READ_AHEAD_CHARS = 64 * 1024;
+
+    private static final TypeAdapter<JsonElement> ELEMENTS = new Gson().getAdapter(JsonElement.class);
+
+    private final List<JsonElement> readAhead;
+    // All null once every row has been read ahead
+    private final StreamSlot slot;
+    private final Connection conn;
+    private final PreparedStatement ps;
+    private final ResultSet rs;
+    private final RowWriter rowWriter;
+
+    private JsonRowStream(List<JsonElement> readAhead, StreamSlot slot, Connection conn, PreparedStatement ps,
+                          ResultSet rs, RowWriter rowWriter) {
+        this.readAhead = readAhead;
+        this.slot = slot;
+        this.conn = conn;
+        this.ps = ps;
+        this.rs = rs;
+        this.rowWriter = rowWriter;
+    }
+
+    public static JsonRowStream open(DatabaseService db, String sql, Binder binder, RowWriter rowWriter)
+            throws SQLException {
+        StreamSlot slot = StreamSlot.take();
+        Connection conn;
+        try {
+            conn = db.getStreamingConnection();
+        } catch (SQLException | RuntimeException e) {
+            if (slot != null) slot.release();
+            throw e;
+        }
+        try {
+            PreparedStatement ps = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            // Connector/J only streams row by row with exactly this fetch size, otherwise it buffers the whole result
+            ps.setFetchSize(Integer.MIN_VALUE);
+            binder.bind(ps);
+            ResultSet rs = ps.executeQuery();
+
+            List<JsonElement> rows = new ArrayList<>();
+            int chars = 0;
+            while (chars < READ_AHEAD_CHARS) {
+                if (!rs.next()) {
+                    // Everything is in memory, the connection and the slot can go right away
+                    new JsonRowStream(rows, slot, conn, ps, rs, rowWriter).close();
+                    return new JsonRowStream(rows, null, null, null, null, rowWriter);
+                }
+                String row = render(rs, rowWriter);
+                chars += row.length();
+                rows.add(JsonParser.parseString(row));
+            }
+            return new JsonRowStream(rows, slot, conn, ps, rs, rowWriter);
+        } catch (SQLException | RuntimeException e) {
+            conn.close();
+            if (slot != null) slot.release();
+            throw e;
+        }
+    }
+
+    private static String render(ResultSet rs, RowWriter rowWriter) throws SQLException {
+        StringWriter row = new StringWriter();
+        try {
+            rowWriter.write(rs, new JsonWriter(row));
+        } catch (IOException e) {
+            throw new SQLException("Failed writing row: " + e.getMessage(), e);
+        }
+        return row.toString();
+    }
+
+    @Override
+    public void writeTo(JsonWriter out) throws IOException {
+        out.beginArray();
+        for (JsonElement row : readAhead) {
+            ELEMENTS.write(out, row);
+        }
+        if (rs != null) {
+            try {
+                while (rs.next()) {
+                    rowWriter.write(rs, out);
+                }
+            } catch (SQLException e) {
+                throw new IOException("Failed reading rows: " + e.getMessage(), e);
+            }
+        }
+        out.endArray();
+    }
+
+    @Override
+    public void close() {
+        if (conn == null) return;
+        try (conn; ps; rs) {
+            // closed in reverse order
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            if (slot != null) slot.release();
+        }
+    }
+}
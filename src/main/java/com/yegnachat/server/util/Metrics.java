@@ -0,0 +1,28 @@
+package com.yegnachat.server.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Process wide registry of named counters and gauges, read when /metrics is requested.
+ */
+public final class Metrics {
+
+    private static final Map<String, LongSupplier> values = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    // A later registration under the same name replaces the earlier one
+    public static void register(String name, LongSupplier value) {
+        values.put(name, value);
+    }
+
+    // One "name value" line per metric, sorted by name
+    public static String render() {
+        StringBuilder out = new StringBuilder();
+        values.forEach((name, value) -> out.append(name).append(' ').append(value.getAsLong()).append('\n'));
+        return out.toString();
+    }
+}
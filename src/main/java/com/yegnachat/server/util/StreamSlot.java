@@ -0,0 +1,55 @@
+package com.yegnachat.server.util;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Lets a connection keep at most one query open for a streamed reply, so one client reading slowly
+ * can't hold several database connections. A connection installs its slot around each request it
+ * handles; queries of that request wait for the slot before they run and give it back once their
+ * rows are read or written. Queries of the same request share the slot, so a reply with two
+ * listings never waits on itself.
+ */
+public final class StreamSlot {
+
+    private static final ThreadLocal<StreamSlot> CURRENT = new ThreadLocal<>();
+
+    private final Semaphore permit = new Semaphore(1);
+    private Thread owner;
+    private int holds;
+
+    public void install() {
+        CURRENT.set(this);
+    }
+
+    public static void uninstall() {
+        CURRENT.remove();
+    }
+
+    // The slot taken for the current request, or null outside one. Blocks while another request has it
+    static StreamSlot take() {
+        StreamSlot slot = CURRENT.get();
+        if (slot == null) return null;
+
+        Thread current = Thread.currentThread();
+        synchronized (slot) {
+            if (slot.owner == current) {
+                slot.holds++;
+                return slot;
+            }
+        }
+        slot.permit.acquireUninterruptibly();
+        synchronized (slot) {
+            slot.owner = current;
+            slot.holds = 1;
+        }
+        return slot;
+    }
+
+    // May be called from any thread, the reply isn't always written where it was built
+    synchronized void release() {
+        if (--holds == 0) {
+            owner = null;
+            permit.release();
+        }
+    }
+}
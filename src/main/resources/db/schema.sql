@@ -88,4 +88,76 @@ CREATE TABLE IF NOT EXISTS post_comments (
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
     FOREIGN KEY (post_id) REFERENCES posts(id) ON DELETE CASCADE,
     FOREIGN KEY (user_id) REFERENCES users(id)
-);
\ No newline at end of file
+);
+
+-- Keyset pagination of chat history walks these by id
+CREATE INDEX idx_messages_pair ON messages (sender_id, receiver_id, id);
+CREATE INDEX idx_group_messages_group ON group_messages (group_id, id);
+
+-- One row per user and private chat they take part in, kept up to date as messages are saved
+CREATE TABLE IF NOT EXISTS conversations (
+    user_id          INT NOT NULL,
+    peer_id          INT NOT NULL,
+    last_message_id  BIGINT NOT NULL,
+    last_message_at  TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    last_sender_id   INT NOT NULL,
+    last_preview     VARCHAR(100),
+    unread_count     INT NOT NULL DEFAULT 0,
+    PRIMARY KEY (user_id, peer_id),
+    INDEX idx_conversations_recent (user_id, last_message_id),
+    FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE
+);
+
+-- Messages that couldn't be pushed because the recipient was offline, sent on their next login
+CREATE TABLE IF NOT EXISTS pending_deliveries (
+    user_id     INT NOT NULL,
+    chat_type   ENUM('private', 'group') NOT NULL,
+    message_id  BIGINT NOT NULL,
+    PRIMARY KEY (user_id, chat_type, message_id),
+    FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE
+);
+
+-- Optional id chosen by the client, so a retried send is stored only once
+ALTER TABLE messages ADD COLUMN client_msg_id VARCHAR(64) NULL;
+ALTER TABLE group_messages ADD COLUMN client_msg_id VARCHAR(64) NULL;
+CREATE UNIQUE INDEX uq_messages_client_msg ON messages (sender_id, client_msg_id);
+CREATE UNIQUE INDEX uq_group_messages_client_msg ON group_messages (sender_id, client_msg_id);
+
+-- Maintained by PostCounters, so feed pages don't count likes and comments per post
+ALTER TABLE posts ADD COLUMN like_count INT NOT NULL DEFAULT 0;
+ALTER TABLE posts ADD COLUMN comment_count INT NOT NULL DEFAULT 0;
+CREATE INDEX idx_posts_created ON posts (created_at, id);
+
+-- Who follows whom, read by home timelines in both directions
+CREATE TABLE IF NOT EXISTS user_follows (
+    follower_id  INT NOT NULL,
+    target_id    INT NOT NULL,
+    followed_at  TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    PRIMARY KEY (follower_id, target_id),
+    INDEX idx_user_follows_target (target_id, follower_id),
+    FOREIGN KEY (follower_id) REFERENCES users(id) ON DELETE CASCADE,
+    FOREIGN KEY (target_id) REFERENCES users(id) ON DELETE CASCADE
+);
+
+-- Comment pages walk a post's comments by (created_at, id)
+CREATE INDEX idx_post_comments_post ON post_comments (post_id, created_at, id);
+
+-- Newest message of each group, one row per group however many members it has. A member's unread
+-- count is what others sent after their last_read_id
+CREATE TABLE IF NOT EXISTS group_conversations (
+    group_id         INT PRIMARY KEY,
+    last_message_id  BIGINT NOT NULL,
+    last_message_at  TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    last_sender_id   INT NOT NULL,
+    last_preview     VARCHAR(100),
+    FOREIGN KEY (group_id) REFERENCES chat_groups(id) ON DELETE CASCADE
+);
+ALTER TABLE group_members ADD COLUMN last_read_id BIGINT NOT NULL DEFAULT 0;
+
+-- Groups are kept in group_conversations, so conversations only holds private chats
+ALTER TABLE conversations
+    DROP PRIMARY KEY,
+    ADD PRIMARY KEY (user_id, peer_id),
+    DROP INDEX idx_conversations_recent,
+    ADD INDEX idx_conversations_recent (user_id, last_message_id),
+    DROP COLUMN peer_type;
@@ -0,0 +1,127 @@
+package com.yegnachat.server.chat;
+
+import com.yegnachat.server.chat.RecentMessageCache.CachedMessage;
+import com.yegnachat.server.chat.RecentMessageCache.Slice;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class RecentMessageCacheTest {
+
+    private static final String CHAT = RecentMessageCache.groupConversation(1);
+
+    private static CachedMessage message(long id) {
+        return new CachedMessage(id, 7, "m" + id);
+    }
+
+    private static List<CachedMessage> messages(long from, long to) {
+        List<CachedMessage> messages = new ArrayList<>();
+        for (long id = from; id <= to; id++) messages.add(message(id));
+        return messages;
+    }
+
+    private static List<Long> ids(Slice slice) {
+        return slice.messages().stream().map(CachedMessage::id).toList();
+    }
+
+    @Test
+    void unknownConversationIsAMiss() {
+        RecentMessageCache cache = new RecentMessageCache(10, 1 << 20);
+
+        assertNull(cache.page(CHAT, null, null, 5));
+    }
+
+    @Test
+    void ringStartedByASendDoesNotKnowWhatCameBefore() {
+        RecentMessageCache cache = new RecentMessageCache(10, 1 << 20);
+        cache.add(CHAT, message(5));
+        cache.add(CHAT, message(6));
+
+        // Reaching the oldest cached message needs the database to tell whether there is more
+        assertNull(cache.page(CHAT, null, null, 5));
+        Slice newest = cache.page(CHAT, null, null, 1);
+        assertEquals(List.of(6L), ids(newest));
+        assertEquals(6L, newest.nextCursor());
+    }
+
+    @Test
+    void seededWholeConversationHasNoOlderMessages() {
+        RecentMessageCache cache = new RecentMessageCache(10, 1 << 20);
+        cache.seed(CHAT, messages(1, 3), false, cache.evictions());
+
+        Slice slice = cache.page(CHAT, null, null, 50);
+        assertEquals(List.of(1L, 2L, 3L), ids(slice));
+        assertNull(slice.nextCursor());
+        assertEquals(List.of(3L), ids(cache.page(CHAT, null, 2L, 50)));
+    }
+
+    @Test
+    void fullRingHasOlderMessagesAgain() {
+        RecentMessageCache cache = new RecentMessageCache(3, 1 << 20);
+        cache.seed(CHAT, messages(1, 2), false, cache.evictions());
+        cache.add(CHAT, message(3));
+        assertNotNull(cache.page(CHAT, null, null, 50));
+
+        cache.add(CHAT, message(4));
+        assertNull(cache.page(CHAT, null, null, 50));
+        assertEquals(List.of(3L, 4L), ids(cache.page(CHAT, null, null, 2)));
+        assertNull(cache.page(CHAT, null, 1L, 50));
+    }
+
+    @Test
+    void keepsIdOrderAndIgnoresDuplicates() {
+        RecentMessageCache cache = new RecentMessageCache(10, 1 << 20);
+        cache.seed(CHAT, List.of(message(1), message(3)), false, cache.evictions());
+        cache.add(CHAT, message(2));
+        cache.add(CHAT, message(3));
+
+        assertEquals(List.of(1L, 2L, 3L), ids(cache.page(CHAT, null, null, 50)));
+    }
+
+    @Test
+    void pagesBackwardsWithTheCursor() {
+        RecentMessageCache cache = new RecentMessageCache(10, 1 << 20);
+        cache.seed(CHAT, messages(1, 5), false, cache.evictions());
+
+        Slice first = cache.page(CHAT, null, null, 2);
+        assertEquals(List.of(4L, 5L), ids(first));
+        Slice second = cache.page(CHAT, first.nextCursor(), null, 2);
+        assertEquals(List.of(2L, 3L), ids(second));
+        Slice last = cache.page(CHAT, second.nextCursor(), null, 2);
+        assertEquals(List.of(1L), ids(last));
+        assertNull(last.nextCursor());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedConversationOverTheBudget() {
+        long oneMessage = message(1).bytes();
+        RecentMessageCache cache = new RecentMessageCache(10, 2 * oneMessage);
+        String other = RecentMessageCache.groupConversation(2);
+        String third = RecentMessageCache.groupConversation(3);
+        cache.seed(CHAT, messages(1, 1), false, cache.evictions());
+        cache.seed(other, messages(2, 2), false, cache.evictions());
+        cache.page(CHAT, null, null, 1);
+
+        cache.add(third, message(3));
+
+        assertEquals(1, cache.evictions());
+        assertNotNull(cache.page(CHAT, null, null, 1));
+        assertNull(cache.page(other, null, null, 1));
+    }
+
+    @Test
+    void seedThatRacedAnEvictionIsDropped() {
+        RecentMessageCache cache = new RecentMessageCache(10, message(1).bytes());
+        long before = cache.evictions();
+        cache.add(RecentMessageCache.groupConversation(2), message(1));
+        cache.add(RecentMessageCache.groupConversation(3), message(2));
+
+        cache.seed(CHAT, messages(1, 1), false, before);
+        assertNull(cache.page(CHAT, null, null, 1));
+    }
+}
@@ -0,0 +1,80 @@
+package com.yegnachat.server.feed;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LikeBufferTest {
+
+    private final List<String> lookups = new ArrayList<>();
+
+    // Nothing is flushed during a test, so no database is needed. stored holds "post:user" likes
+    private LikeBuffer buffer(String... stored) {
+        Set<String> likes = Set.of(stored);
+        return new LikeBuffer(null, null, TimeUnit.HOURS.toMillis(1), (postId, userId) -> {
+            lookups.add(postId + ":" + userId);
+            return likes.contains(postId + ":" + userId);
+        });
+    }
+
+    @Test
+    void firstTapChangesThePendingCount() throws Exception {
+        LikeBuffer likes = buffer("2:10");
+
+        assertTrue(likes.set(1, 10, true));
+        assertTrue(likes.set(1, 11, true));
+        assertTrue(likes.set(2, 10, false));
+
+        assertEquals(2, likes.pendingLikes(1));
+        assertEquals(-1, likes.pendingLikes(2));
+    }
+
+    @Test
+    void repeatingTheLastTapChangesNothing() throws Exception {
+        LikeBuffer likes = buffer();
+        likes.set(1, 10, true);
+
+        assertFalse(likes.set(1, 10, true));
+        assertEquals(1, likes.pendingLikes(1));
+    }
+
+    @Test
+    void tapsMatchingWhatIsStoredChangeNothing() throws Exception {
+        LikeBuffer likes = buffer("1:10");
+
+        assertFalse(likes.set(1, 10, true));
+        assertFalse(likes.set(2, 10, false));
+
+        assertEquals(0, likes.pendingLikes(1));
+        assertEquals(0, likes.pendingLikes(2));
+    }
+
+    @Test
+    void onlyTheLastTapOfAUserIsKept() throws Exception {
+        LikeBuffer likes = buffer();
+
+        assertTrue(likes.set(1, 10, true));
+        assertTrue(likes.set(1, 10, false));
+        assertEquals(0, likes.pendingLikes(1));
+        assertTrue(likes.set(1, 10, true));
+        assertEquals(1, likes.pendingLikes(1));
+        assertEquals(List.of("1:10"), lookups);
+    }
+
+    @Test
+    void unlikeOfAPostNeverLikedDoesNotCancelALike() throws Exception {
+        LikeBuffer likes = buffer();
+        likes.set(1, 10, true);
+        likes.set(1, 11, false);
+
+        assertEquals(1, likes.pendingLikes(1));
+        assertEquals(0, likes.pendingLikes(99));
+    }
+}
@@ -0,0 +1,88 @@
+package com.yegnachat.server.feed;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+class TrendingPostsTest {
+
+    private static final long HALF_LIFE_MINUTES = 60;
+    private static final long HALF_LIFE = TimeUnit.MINUTES.toMillis(HALF_LIFE_MINUTES);
+
+    // Never rebuilt, so no database
+    private static TrendingPosts trending(int maxPosts) {
+        return new TrendingPosts(null, maxPosts, HALF_LIFE_MINUTES);
+    }
+
+    @Test
+    void ranksByWeight() {
+        TrendingPosts trending = trending(10);
+        long now = System.currentTimeMillis();
+        trending.add(1, 1, now);
+        trending.add(2, 3, now);
+        trending.add(3, 2, now);
+
+        assertArrayEquals(new long[]{2, 3, 1}, trending.top(10));
+        assertArrayEquals(new long[]{2}, trending.top(1));
+    }
+
+    @Test
+    void weightHalvesEveryHalfLife() {
+        TrendingPosts trending = trending(10);
+        long now = System.currentTimeMillis();
+        // Worth 4 then, 1 two half-lives later
+        trending.add(1, 4, now);
+        trending.add(2, 1.1, now + 2 * HALF_LIFE);
+        trending.add(3, 0.9, now + 2 * HALF_LIFE);
+
+        assertArrayEquals(new long[]{2, 1, 3}, trending.top(10));
+    }
+
+    @Test
+    void unlikesTakeAwayButNeverBelowZero() {
+        TrendingPosts trending = trending(10);
+        long now = System.currentTimeMillis();
+        trending.add(1, 2, now);
+        trending.add(2, 1, now);
+        trending.add(1, -5, now);
+
+        assertArrayEquals(new long[]{2, 1}, trending.top(10));
+    }
+
+    @Test
+    void unlikeOfAnUnrankedPostIsIgnored() {
+        TrendingPosts trending = trending(10);
+        trending.liked(1, -1);
+
+        assertArrayEquals(new long[0], trending.top(10));
+    }
+
+    @Test
+    void dropsTheLowestBeyondMaxPosts() {
+        TrendingPosts trending = trending(2);
+        long now = System.currentTimeMillis();
+        trending.add(1, 3, now);
+        trending.add(2, 1, now);
+        trending.add(3, 2, now);
+
+        assertArrayEquals(new long[]{1, 3}, trending.top(10));
+    }
+
+    @Test
+    void rebaseKeepsTheOrderAndTheNumbersFinite() {
+        TrendingPosts trending = trending(10);
+        long start = System.currentTimeMillis();
+        // Far enough apart that without rebasing the scaled weights would overflow to infinity
+        for (int step = 1; step <= 40; step++) {
+            long at = start + step * 50 * HALF_LIFE;
+            trending.add(1, 2, at);
+            trending.add(2, 1, at);
+        }
+        long later = start + 41 * 50 * HALF_LIFE;
+        trending.add(3, 1.5, later);
+
+        assertArrayEquals(new long[]{3, 1, 2}, trending.top(10));
+    }
+}
@@ -0,0 +1,154 @@
+package com.yegnachat.server.net;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboundQueueTest {
+
+    private static OutboundFrame frame(String json) {
+        return OutboundFrame.json(json);
+    }
+
+    private static String text(OutboundFrame frame) {
+        return StandardCharsets.UTF_8.decode(frame.payload()).toString();
+    }
+
+    @Test
+    void dropKeepsWhatIsQueued() {
+        OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.DROP);
+
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer(frame("1")));
+        assertEquals(OutboundQueue.Result.DROPPED, queue.offer(frame("2")));
+        assertEquals("1", text(queue.poll()));
+        assertEquals(1, queue.droppedCount());
+    }
+
+    @Test
+    void disconnectOverflows() {
+        OutboundQueue queue = new OutboundQueue(1, OverflowPolicy.DISCONNECT);
+        queue.offer(frame("1"));
+
+        assertEquals(OutboundQueue.Result.OVERFLOW, queue.offer(frame("2")));
+    }
+
+    @Test
+    void coalesceReplacesAPendingFrameWithTheSameKey() {
+        OutboundQueue queue = new OutboundQueue(4, OverflowPolicy.COALESCE);
+
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer("k", frame("old")));
+        queue.offer(frame("reply"));
+        assertEquals(OutboundQueue.Result.COALESCED, queue.offer("k", frame("new")));
+
+        assertEquals("new", text(queue.poll()));
+        assertEquals("reply", text(queue.poll()));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void coalesceMakesRoomByDroppingTheOldestKeyedFrame() {
+        OutboundQueue queue = new OutboundQueue(3, OverflowPolicy.COALESCE);
+        queue.offer(frame("reply"));
+        queue.offer("a", frame("a"));
+        queue.offer("b", frame("b"));
+
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer(frame("reply 2")));
+        assertEquals("reply", text(queue.poll()));
+        assertEquals("b", text(queue.poll()));
+        assertEquals("reply 2", text(queue.poll()));
+        assertEquals(1, queue.droppedCount());
+    }
+
+    @Test
+    void coalesceNeverDropsReplies() {
+        OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.COALESCE);
+        queue.offer(frame("1"));
+        queue.offer(frame("2"));
+
+        assertEquals(OutboundQueue.Result.OVERFLOW, queue.offer("k", frame("push")));
+        assertEquals(OutboundQueue.Result.OVERFLOW, queue.offer(frame("3")));
+    }
+
+    @Test
+    void keyIsFreeAgainOnceItsFrameIsTaken() {
+        OutboundQueue queue = new OutboundQueue(4, OverflowPolicy.COALESCE);
+        queue.offer("k", frame("1"));
+        queue.poll();
+
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer("k", frame("2")));
+    }
+
+    @Test
+    void framesQueuedDuringAStreamWaitForItsLastChunk() throws Exception {
+        OutboundQueue queue = new OutboundQueue(4, OverflowPolicy.DISCONNECT);
+        OutboundQueue.Stream stream = queue.newStream();
+        queue.offer(stream);
+        queue.offer(frame("after"));
+
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+        stream.write(OutboundFrame.chunk("[1,".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("[1,", text(queue.poll()));
+        assertNull(queue.poll());
+        stream.finish(frame("2]"));
+        assertEquals("2]", text(queue.poll()));
+        assertEquals("after", text(queue.poll()));
+    }
+
+    @Test
+    void streamWriterWaitsForTheWindowToOpen() throws Exception {
+        OutboundQueue queue = new OutboundQueue(4, OverflowPolicy.DISCONNECT);
+        OutboundQueue.Stream stream = queue.newStream();
+        queue.offer(stream);
+        for (int i = 0; i < 4; i++) {
+            stream.write(OutboundFrame.chunk(new byte[]{'x'}));
+        }
+
+        CompletableFuture<Void> blocked = CompletableFuture.runAsync(() -> {
+            try {
+                stream.write(OutboundFrame.chunk(new byte[]{'y'}));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(blocked.isDone());
+
+        queue.poll();
+        blocked.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void closingFailsAWaitingStreamWriter() throws Exception {
+        OutboundQueue queue = new OutboundQueue(4, OverflowPolicy.DISCONNECT);
+        OutboundQueue.Stream stream = queue.newStream();
+        queue.offer(stream);
+        queue.close();
+
+        assertThrows(EOFException.class, () -> stream.write(OutboundFrame.chunk(new byte[]{'x'})));
+        assertEquals(OutboundQueue.Result.CLOSED, queue.offer(frame("late")));
+        assertNull(queue.take());
+    }
+
+    @Test
+    void drainingRefusesNewFramesButHandsOutQueuedOnes() throws Exception {
+        OutboundQueue queue = new OutboundQueue(4, OverflowPolicy.DISCONNECT);
+        queue.offer(frame("logout_response"));
+        queue.drain();
+
+        assertEquals(OutboundQueue.Result.CLOSED, queue.offer(frame("late")));
+        assertFalse(queue.isDrained());
+        assertEquals("logout_response", text(queue.take()));
+        assertTrue(queue.isDrained());
+        assertNull(queue.take());
+    }
+}
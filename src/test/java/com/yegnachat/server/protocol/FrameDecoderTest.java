@@ -0,0 +1,145 @@
+package com.yegnachat.server.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FrameDecoderTest {
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer lengthPrefixed(byte type, byte[] payload) {
+        ByteBuffer buf = ByteBuffer.allocate(Framing.HEADER_SIZE + payload.length);
+        return buf.putInt(payload.length).put(type).put(payload).flip();
+    }
+
+    @Test
+    void splitsLinesAndSkipsBlankOnes() throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        ByteBuffer in = bytes("{\"a\":1}\r\n\n{\"b\":2}\n");
+
+        assertEquals("{\"a\":1}", decoder.decode(in).json());
+        assertEquals("{\"b\":2}", decoder.decode(in).json());
+        assertNull(decoder.decode(in));
+        assertEquals(Framing.LINE, decoder.framing());
+    }
+
+    @Test
+    void joinsALineSplitAcrossReads() throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+
+        assertNull(decoder.decode(bytes("{\"type\":")));
+        assertNull(decoder.decode(bytes("\"ping\"")));
+        assertEquals("{\"type\":\"ping\"}", decoder.decode(bytes("}\n")).json());
+    }
+
+    @Test
+    void keepsAMultiByteCharacterSplitAcrossReads() throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] line = "{\"m\":\"ሰላም\"}\n".getBytes(StandardCharsets.UTF_8);
+        int split = "{\"m\":\"".length() + 1;
+
+        assertNull(decoder.decode(ByteBuffer.wrap(line, 0, split)));
+        assertEquals("{\"m\":\"ሰላም\"}", decoder.decode(ByteBuffer.wrap(line, split, line.length - split)).json());
+    }
+
+    @Test
+    void rejectsALineOverTheMaximum() throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] chunk = new byte[1024 * 1024];
+        Arrays.fill(chunk, (byte) 'x');
+
+        assertThrows(ProtocolException.class, () -> {
+            for (int i = 0; i <= Framing.MAX_FRAME_SIZE / chunk.length; i++) {
+                decoder.decode(ByteBuffer.wrap(chunk));
+            }
+        });
+    }
+
+    @Test
+    void passesRawBytesAfterALineThrough() throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        ByteBuffer in = bytes("{\"type\":\"create_post\"}\n\n\n{}\n");
+
+        assertEquals("{\"type\":\"create_post\"}", decoder.decode(in).json());
+        decoder.expectRaw(2);
+        Frame raw = decoder.decode(in);
+        assertEquals(Frame.Type.BINARY, raw.type());
+        assertEquals(2, raw.data().remaining());
+        assertEquals("{}", decoder.decode(in).json());
+    }
+
+    @Test
+    void negotiatesLengthPrefixedFraming() throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+
+        assertNull(decoder.negotiate(ByteBuffer.wrap(Framing.MAGIC, 0, 2)));
+        ByteBuffer in = ByteBuffer.wrap(Framing.MAGIC);
+        assertEquals(Framing.LENGTH_PREFIXED, decoder.negotiate(in));
+        assertEquals(0, in.remaining());
+    }
+
+    @Test
+    void rejectsAnUnknownPreamble() {
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] preamble = {Framing.MAGIC[0], 'X', 'X', 'X'};
+
+        assertThrows(ProtocolException.class, () -> decoder.negotiate(ByteBuffer.wrap(preamble)));
+    }
+
+    @Test
+    void decodesLengthPrefixedFramesFedByteByByte() throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.negotiate(ByteBuffer.wrap(Framing.MAGIC));
+        ByteBuffer whole = lengthPrefixed(Frame.Type.JSON.code(), "{\"a\":1}".getBytes(StandardCharsets.UTF_8));
+
+        // Unconsumed bytes stay in the buffer, like the transports' read buffers
+        int length = whole.limit();
+        Frame frame = null;
+        for (int i = 1; i <= length; i++) {
+            assertNull(frame);
+            frame = decoder.decode(whole.limit(i));
+        }
+        assertEquals("{\"a\":1}", frame.json());
+    }
+
+    @Test
+    void decodesBinaryFramesInPlace() throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.negotiate(ByteBuffer.wrap(Framing.MAGIC));
+        byte[] payload = {1, 2, 3};
+
+        Frame frame = decoder.decode(lengthPrefixed(Frame.Type.BINARY.code(), payload));
+        byte[] read = new byte[frame.data().remaining()];
+        frame.data().get(read);
+        assertArrayEquals(payload, read);
+    }
+
+    @Test
+    void rejectsAnOversizedLengthBeforeReadingThePayload() throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.negotiate(ByteBuffer.wrap(Framing.MAGIC));
+        ByteBuffer header = ByteBuffer.allocate(Framing.HEADER_SIZE).putInt(Framing.MAX_FRAME_SIZE + 1).put(Frame.Type.JSON.code());
+
+        assertThrows(ProtocolException.class, () -> decoder.decode(header.flip()));
+    }
+
+    @Test
+    void rejectsFrameTypesClientsMayNotSend() throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.negotiate(ByteBuffer.wrap(Framing.MAGIC));
+
+        assertThrows(ProtocolException.class, () -> decoder.decode(lengthPrefixed((byte) 9, new byte[1])));
+        assertThrows(ProtocolException.class, () -> decoder.decode(lengthPrefixed(Frame.Type.JSON_CHUNK.code(), new byte[1])));
+    }
+}
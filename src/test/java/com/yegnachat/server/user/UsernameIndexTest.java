@@ -0,0 +1,92 @@
+package com.yegnachat.server.user;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class UsernameIndexTest {
+
+    private static UsernameIndex index(String... names) {
+        UsernameIndex index = new UsernameIndex();
+        for (int i = 0; i < names.length; i++) {
+            index.add(i + 1, names[i]);
+        }
+        return index;
+    }
+
+    @Test
+    void prefixMatchesComeFirstAlphabetically() {
+        UsernameIndex index = index("abelmaru", "mariam", "maru", "selam", "mar");
+
+        // mar, maru and mariam start with the query, abelmaru only contains it
+        assertArrayEquals(new int[]{5, 2, 3, 1}, index.search("mar", 10, 0));
+    }
+
+    @Test
+    void searchIgnoresCase() {
+        UsernameIndex index = index("Selam");
+
+        assertArrayEquals(new int[]{1}, index.search("sELa", 10, 0));
+    }
+
+    @Test
+    void insideMatchesComeShortestFirst() {
+        UsernameIndex index = index("bbbelam", "aaselam", "zselam", "belay");
+
+        // All contain "ela" but none starts with it: shorter first, then alphabetical
+        assertArrayEquals(new int[]{4, 3, 2, 1}, index.search("ela", 10, 0));
+    }
+
+    @Test
+    void trigramWalkChecksTheWholeQuery() {
+        // Both contain every trigram of "abcd" apart, only one has the whole query
+        UsernameIndex index = index("xabcxbcd", "yabcdy");
+
+        assertArrayEquals(new int[]{2}, index.search("abcd", 10, 0));
+    }
+
+    @Test
+    void trigramWalkStopsAtTheLimit() {
+        UsernameIndex index = index("aaselam", "bselam", "ccselam", "dselam");
+
+        assertArrayEquals(new int[]{2, 4}, index.search("sel", 2, 0));
+    }
+
+    @Test
+    void shortQueriesAreMatchedWithoutTrigrams() {
+        UsernameIndex index = index("ab", "xab", "cab", "zz");
+
+        assertArrayEquals(new int[]{1, 2, 3}, index.search("ab", 10, 0));
+        assertArrayEquals(new int[]{2}, index.search("x", 10, 0));
+    }
+
+    @Test
+    void excludesTheSearchingUser() {
+        UsernameIndex index = index("selam", "selamawit", "abselam");
+
+        assertArrayEquals(new int[]{2, 3}, index.search("selam", 10, 1));
+    }
+
+    @Test
+    void bulkLoadRanksLikeSingleAdds() {
+        String[] names = {"abelmaru", "mariam", "maru", "selam", "mar", "tamar", "xmar"};
+        UsernameIndex bulk = new UsernameIndex();
+        bulk.addAll(new int[]{1, 2, 3, 4, 5, 6, 7}, names);
+        UsernameIndex single = index(names);
+
+        assertEquals(single.size(), bulk.size());
+        for (String query : new String[]{"mar", "ma", "ar", "aru", "elam"}) {
+            assertArrayEquals(single.search(query, 10, 0), bulk.search(query, 10, 0), query);
+        }
+    }
+
+    @Test
+    void usersAddedAfterABulkLoadAreFound() {
+        UsernameIndex index = new UsernameIndex();
+        index.addAll(new int[]{1, 2}, new String[]{"maru", "tamar"});
+        index.add(3, "amar");
+
+        assertArrayEquals(new int[]{3, 2}, index.search("amar", 10, 0));
+    }
+}
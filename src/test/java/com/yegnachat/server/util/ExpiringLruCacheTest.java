@@ -0,0 +1,100 @@
+package com.yegnachat.server.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ExpiringLruCacheTest {
+
+    private final List<List<Integer>> loads = new ArrayList<>();
+
+    private Map<Integer, String> load(Collection<Integer> keys) {
+        loads.add(List.copyOf(keys));
+        Map<Integer, String> found = new HashMap<>();
+        for (int key : keys) {
+            // Negative keys don't exist
+            if (key >= 0) found.put(key, "v" + key);
+        }
+        return found;
+    }
+
+    @Test
+    void loadsMissesInOneCallAndServesHitsFromMemory() throws Exception {
+        ExpiringLruCache<Integer, String> cache = new ExpiringLruCache<>(10, 1, TimeUnit.HOURS);
+
+        assertEquals(Map.of(1, "v1", 2, "v2"), cache.getAll(List.of(1, 2, 1), this::load));
+        assertEquals(Map.of(1, "v1", 2, "v2", 3, "v3"), cache.getAll(List.of(1, 2, 3), this::load));
+
+        assertEquals(List.of(List.of(1, 2), List.of(3)), loads);
+        assertEquals(2, cache.hits());
+        assertEquals(3, cache.misses());
+    }
+
+    @Test
+    void doesNotCacheKeysTheLoaderDidNotReturn() throws Exception {
+        ExpiringLruCache<Integer, String> cache = new ExpiringLruCache<>(10, 1, TimeUnit.HOURS);
+
+        assertNull(cache.get(-1, this::load));
+        assertNull(cache.get(-1, this::load));
+
+        assertEquals(2, loads.size());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() throws Exception {
+        ExpiringLruCache<Integer, String> cache = new ExpiringLruCache<>(2, 1, TimeUnit.HOURS);
+        cache.put(1, "a");
+        cache.put(2, "b");
+        cache.getIfPresent(1);
+        cache.put(3, "c");
+
+        assertEquals(2, cache.size());
+        assertEquals("a", cache.peek(1));
+        assertNull(cache.peek(2));
+        assertEquals("c", cache.peek(3));
+    }
+
+    @Test
+    void expiredEntriesAreLoadedAgain() throws Exception {
+        ExpiringLruCache<Integer, String> cache = new ExpiringLruCache<>(10, 1, TimeUnit.MILLISECONDS);
+        cache.get(1, this::load);
+        Thread.sleep(5);
+
+        assertNull(cache.getIfPresent(1));
+        assertEquals("v1", cache.get(1, this::load));
+        assertEquals(2, loads.size());
+    }
+
+    @Test
+    void loadOverlappingAnInvalidationIsNotStored() throws Exception {
+        ExpiringLruCache<Integer, String> cache = new ExpiringLruCache<>(10, 1, TimeUnit.HOURS);
+
+        String value = cache.get(1, keys -> {
+            cache.invalidate(1);
+            return load(keys);
+        });
+
+        assertEquals("v1", value);
+        assertNull(cache.peek(1));
+    }
+
+    @Test
+    void peekIsNotCounted() {
+        ExpiringLruCache<Integer, String> cache = new ExpiringLruCache<>(10, 1, TimeUnit.HOURS);
+        cache.put(1, "a");
+        cache.peek(1);
+        cache.peek(2);
+
+        assertEquals(0, cache.hits());
+        assertEquals(0, cache.misses());
+    }
+}